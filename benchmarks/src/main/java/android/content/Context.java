@@ -0,0 +1,34 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Benchmark fake of the framework Context, only provides the directories the effect control
+ * code stores its profiles in.
+ */
+public class Context {
+
+    private final File mDataDir;
+
+    public Context(final File dataDir) {
+        mDataDir = dataDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getDataDir() {
+        return mDataDir;
+    }
+
+    public File getFilesDir() {
+        final File dir = new File(mDataDir, "files");
+        dir.mkdirs();
+        return dir;
+    }
+
+    public boolean deleteSharedPreferences(final String name) {
+        return new File(new File(mDataDir, "shared_prefs"), name + ".xml").delete();
+    }
+}
@@ -0,0 +1,21 @@
+package android.media;
+
+/**
+ * Benchmark fake of the framework AudioDeviceInfo, only the device types.
+ */
+public final class AudioDeviceInfo {
+
+    public static final int TYPE_BUILTIN_SPEAKER = 2;
+    public static final int TYPE_WIRED_HEADSET = 3;
+    public static final int TYPE_WIRED_HEADPHONES = 4;
+    public static final int TYPE_LINE_ANALOG = 5;
+    public static final int TYPE_LINE_DIGITAL = 6;
+    public static final int TYPE_BLUETOOTH_A2DP = 8;
+    public static final int TYPE_HDMI = 9;
+    public static final int TYPE_HDMI_ARC = 10;
+    public static final int TYPE_USB_DEVICE = 11;
+    public static final int TYPE_USB_ACCESSORY = 12;
+    public static final int TYPE_DOCK = 13;
+    public static final int TYPE_AUX_LINE = 19;
+    public static final int TYPE_USB_HEADSET = 22;
+}
@@ -0,0 +1,9 @@
+package android.media;
+
+/**
+ * Benchmark fake of the framework AudioFormat.
+ */
+public class AudioFormat {
+
+    public static final int CHANNEL_OUT_STEREO = 0xc;
+}
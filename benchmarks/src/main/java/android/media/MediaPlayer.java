@@ -0,0 +1,20 @@
+package android.media;
+
+/**
+ * Compile stub of the framework MediaPlayer for the production effect backend, the
+ * benchmarks use RecordingEffectBackend instead.
+ */
+public class MediaPlayer {
+
+    public MediaPlayer() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int getAudioSessionId() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void release() {
+        throw new RuntimeException("Stub!");
+    }
+}
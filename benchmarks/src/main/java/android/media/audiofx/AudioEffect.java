@@ -0,0 +1,43 @@
+package android.media.audiofx;
+
+import java.util.UUID;
+
+/**
+ * Compile stub of the framework AudioEffect for the production effect backend, the
+ * benchmarks use RecordingEffectBackend instead.
+ */
+public class AudioEffect {
+
+    public static final UUID EFFECT_TYPE_BASS_BOOST =
+            UUID.fromString("0634f220-ddd4-11db-a0fc-0002a5d5c51b");
+    public static final UUID EFFECT_TYPE_EQUALIZER =
+            UUID.fromString("0bed4300-ddd6-11db-8f34-0002a5d5c51b");
+    public static final UUID EFFECT_TYPE_PRESET_REVERB =
+            UUID.fromString("47382d60-ddd8-11db-bf3a-0002a5d5c51b");
+    public static final UUID EFFECT_TYPE_VIRTUALIZER =
+            UUID.fromString("37cc2c00-dddd-11db-8577-0002a5d5c51b");
+    public static final UUID EFFECT_TYPE_STEREOWIDE =
+            UUID.fromString("37cc2c00-dddd-11db-8577-0002a5d5c51c");
+
+    public static class Descriptor {
+        public UUID type;
+        public UUID uuid;
+        public String name;
+    }
+
+    protected AudioEffect() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public static Descriptor[] queryEffects() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int setEnabled(final boolean enabled) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void release() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,52 @@
+package android.media.audiofx;
+
+/**
+ * Compile stub of the framework Equalizer.
+ */
+public class Equalizer extends AudioEffect {
+
+    public static class Settings {
+        public short curPreset;
+        public short numBands;
+        public short[] bandLevels;
+    }
+
+    public Equalizer(final int priority, final int audioSession) {
+    }
+
+    public short getNumberOfBands() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public short[] getBandLevelRange() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public int getCenterFreq(final short band) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public short getNumberOfPresets() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public String getPresetName(final short preset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void usePreset(final short preset) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public short getBandLevel(final short band) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setBandLevel(final short band, final short level) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public void setProperties(final Settings settings) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,14 @@
+package android.media.audiofx;
+
+/**
+ * Compile stub of the framework PresetReverb.
+ */
+public class PresetReverb extends AudioEffect {
+
+    public PresetReverb(final int priority, final int audioSession) {
+    }
+
+    public void setPreset(final short preset) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,14 @@
+package android.media.audiofx;
+
+/**
+ * Compile stub of the framework StereoWide.
+ */
+public class StereoWide extends AudioEffect {
+
+    public StereoWide(final int priority, final int audioSession) {
+    }
+
+    public void setStrength(final short strength) {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -0,0 +1,24 @@
+package android.media.audiofx;
+
+/**
+ * Compile stub of the framework Virtualizer.
+ */
+public class Virtualizer extends AudioEffect {
+
+    public static final int VIRTUALIZATION_MODE_TRANSAURAL = 2;
+
+    public Virtualizer(final int priority, final int audioSession) {
+    }
+
+    public void setStrength(final short strength) {
+        throw new RuntimeException("Stub!");
+    }
+
+    public boolean getStrengthSupported() {
+        throw new RuntimeException("Stub!");
+    }
+
+    public boolean canVirtualize(final int inputChannelMask, final int virtualizationMode) {
+        throw new RuntimeException("Stub!");
+    }
+}
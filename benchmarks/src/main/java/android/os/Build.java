@@ -0,0 +1,10 @@
+package android.os;
+
+/**
+ * Benchmark fake of the framework Build.
+ */
+public class Build {
+
+    public static final String FINGERPRINT = "musicfx/benchmark/jvm:" + System.getProperty(
+            "java.version");
+}
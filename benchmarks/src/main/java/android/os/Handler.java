@@ -0,0 +1,39 @@
+package android.os;
+
+/**
+ * Benchmark fake of the framework Handler, supports posting runnables only.
+ */
+public class Handler {
+
+    private final Looper mLooper;
+
+    public Handler(final Looper looper) {
+        mLooper = looper;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final boolean post(final Runnable r) {
+        return postAtTime(r, SystemClock.uptimeMillis());
+    }
+
+    public final boolean postDelayed(final Runnable r, final long delayMillis) {
+        return postAtTime(r, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public final boolean postAtTime(final Runnable r, final long uptimeMillis) {
+        mLooper.enqueue(new Message(this, r, uptimeMillis));
+        return true;
+    }
+
+    public final boolean postAtFrontOfQueue(final Runnable r) {
+        mLooper.enqueueAtFront(new Message(this, r, 0));
+        return true;
+    }
+
+    public final void removeCallbacks(final Runnable r) {
+        mLooper.remove(this, r);
+    }
+}
@@ -0,0 +1,53 @@
+package android.os;
+
+/**
+ * Benchmark fake of the framework HandlerThread. The threads are daemons so they never keep
+ * the benchmark JVM alive.
+ */
+public class HandlerThread extends Thread {
+
+    private Looper mLooper;
+
+    public HandlerThread(final String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    public HandlerThread(final String name, final int priority) {
+        this(name);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            mLooper = Looper.myLooper();
+            notifyAll();
+        }
+        Looper.loop();
+    }
+
+    public Looper getLooper() {
+        if (!isAlive()) {
+            return null;
+        }
+        synchronized (this) {
+            while (isAlive() && mLooper == null) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                }
+            }
+        }
+        return mLooper;
+    }
+
+    public boolean quit() {
+        final Looper looper = getLooper();
+        if (looper != null) {
+            looper.quit();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmark fake of the framework Looper: a time ordered queue of runnables processed by the
+ * thread that called loop(). The main looper exists but is never looped.
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+    private static final Looper sMainLooper = new Looper();
+
+    private final ArrayList<Message> mQueue = new ArrayList<Message>();
+    private boolean mQuit;
+
+    private Looper() {
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    public static void loop() {
+        final Looper me = myLooper();
+        if (me == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        while (true) {
+            final Message msg = me.next();
+            if (msg == null) {
+                return;
+            }
+            msg.callback.run();
+        }
+    }
+
+    public void quit() {
+        synchronized (mQueue) {
+            mQuit = true;
+            mQueue.notifyAll();
+        }
+    }
+
+    private Message next() {
+        synchronized (mQueue) {
+            while (true) {
+                if (mQuit) {
+                    return null;
+                }
+                final long now = SystemClock.uptimeMillis();
+                if (!mQueue.isEmpty()) {
+                    final Message first = mQueue.get(0);
+                    if (first.when <= now) {
+                        mQueue.remove(0);
+                        return first;
+                    }
+                }
+                try {
+                    if (mQueue.isEmpty()) {
+                        mQueue.wait();
+                    } else {
+                        mQueue.wait(Math.max(1, mQueue.get(0).when - now));
+                    }
+                } catch (final InterruptedException e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    void enqueue(final Message msg) {
+        synchronized (mQueue) {
+            int index = mQueue.size();
+            while (index > 0 && mQueue.get(index - 1).when > msg.when) {
+                index--;
+            }
+            mQueue.add(index, msg);
+            mQueue.notifyAll();
+        }
+    }
+
+    void enqueueAtFront(final Message msg) {
+        synchronized (mQueue) {
+            msg.when = 0;
+            mQueue.add(0, msg);
+            mQueue.notifyAll();
+        }
+    }
+
+    void remove(final Handler handler, final Runnable r) {
+        synchronized (mQueue) {
+            for (int i = mQueue.size() - 1; i >= 0; i--) {
+                final Message msg = mQueue.get(i);
+                if (msg.target == handler && msg.callback == r) {
+                    mQueue.remove(i);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Benchmark fake of the framework Message, only carries runnables.
+ */
+public final class Message {
+
+    Handler target;
+    Runnable callback;
+    long when;
+
+    Message(final Handler target, final Runnable callback, final long when) {
+        this.target = target;
+        this.callback = callback;
+        this.when = when;
+    }
+}
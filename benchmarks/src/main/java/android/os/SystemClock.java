@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Benchmark fake of the framework SystemClock.
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * Benchmark fake of the framework SystemProperties backed by the JVM system properties.
+ */
+public class SystemProperties {
+
+    public static boolean getBoolean(final String key, final boolean def) {
+        final String value = System.getProperty(key);
+        return value != null ? Boolean.parseBoolean(value) : def;
+    }
+
+    public static int getInt(final String key, final int def) {
+        return Integer.getInteger(key, def);
+    }
+
+    public static long getLong(final String key, final long def) {
+        return Long.getLong(key, def);
+    }
+}
@@ -0,0 +1,36 @@
+package android.util;
+
+/**
+ * Benchmark fake of the framework Log. Messages are dropped unless musicfx.benchmark.log is
+ * set, the string building in the callers still takes place as on the device.
+ */
+public final class Log {
+
+    private static final boolean ENABLED = Boolean.getBoolean("musicfx.benchmark.log");
+
+    private Log() {
+    }
+
+    public static int d(final String tag, final String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(final String tag, final String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(final String tag, final String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int e(final String tag, final String msg) {
+        return println("E", tag, msg);
+    }
+
+    private static int println(final String level, final String tag, final String msg) {
+        if (ENABLED) {
+            System.err.println(level + "/" + tag + ": " + msg);
+        }
+        return 0;
+    }
+}
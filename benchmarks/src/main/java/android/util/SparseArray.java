@@ -0,0 +1,73 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * Benchmark fake of the framework SparseArray: int keys kept sorted in a primitive array.
+ */
+public class SparseArray<E> {
+
+    private int[] mKeys = new int[10];
+    private Object[] mValues = new Object[10];
+    private int mSize;
+
+    public int size() {
+        return mSize;
+    }
+
+    public int indexOfKey(final int key) {
+        final int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return index >= 0 ? index : -1;
+    }
+
+    public int keyAt(final int index) {
+        return mKeys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E valueAt(final int index) {
+        return (E) mValues[index];
+    }
+
+    public E get(final int key) {
+        final int index = indexOfKey(key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    public void put(final int key, final E value) {
+        int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (index >= 0) {
+            mValues[index] = value;
+            return;
+        }
+        index = ~index;
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        System.arraycopy(mKeys, index, mKeys, index + 1, mSize - index);
+        System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+        mKeys[index] = key;
+        mValues[index] = value;
+        mSize++;
+    }
+
+    public void remove(final int key) {
+        final int index = indexOfKey(key);
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    public void removeAt(final int index) {
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+        mValues[mSize] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        mSize = 0;
+    }
+}
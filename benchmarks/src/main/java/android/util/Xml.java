@@ -0,0 +1,17 @@
+package android.util;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Benchmark fake of the framework Xml. The benchmarks start from empty profiles, there are no
+ * SharedPreferences files to migrate.
+ */
+public final class Xml {
+
+    private Xml() {
+    }
+
+    public static XmlPullParser newPullParser() {
+        throw new UnsupportedOperationException("No XML parser in the benchmarks");
+    }
+}
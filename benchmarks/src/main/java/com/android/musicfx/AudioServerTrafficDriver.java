@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+import android.content.Context;
+
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays session open/close, parameter change and control loss traffic against
+ * ControlPanelEffect on top of the SimulatedAudioServer, then reports throughput, latency
+ * percentiles and effect instances leaked.
+ *
+ *   java -cp target/benchmarks.jar com.android.musicfx.AudioServerTrafficDriver \
+ *           duration=10 openRate=50 paramRate=200 failureRate=0.001
+ *
+ * Events of each kind arrive at the given rate per second with exponential gaps and are run
+ * on one thread, like on the control thread. The schedule is open loop: latency is measured
+ * from the time an event was due, so time spent waiting behind slow events is included.
+ * Exits with status 1 if instances were leaked.
+ */
+public final class AudioServerTrafficDriver {
+
+    private static final String PACKAGE_NAME = "com.android.musicfx.traffic";
+    private static final String SCOPE = ControlPanelEffect.SPEAKER_PREF_SCOPE;
+
+    private static final int OPEN = 0;
+    private static final int CLOSE = 1;
+    private static final int PARAM = 2;
+    private static final int CONTROL_LOSS = 3;
+    private static final String[] EVENT_NAMES = { "open", "close", "param", "controlLoss" };
+
+    private final SimulatedAudioServer mServer;
+    private final Random mRandom;
+    private final int mMaxSessions;
+    private final double[] mRates = new double[EVENT_NAMES.length];
+    private final long[] mExecuted = new long[EVENT_NAMES.length];
+    private final long[] mSkipped = new long[EVENT_NAMES.length];
+    private final long[] mErrors = new long[EVENT_NAMES.length];
+    private final LatencyHistogram[] mLatency = new LatencyHistogram[EVENT_NAMES.length];
+    private final List<Integer> mOpenSessions = new ArrayList<Integer>();
+    private Context mContext;
+    private int mNextSession = 1000;
+    private int mStep;
+
+    private AudioServerTrafficDriver(final Map<String, String> options) {
+        final long seed = getLong(options, "seed", 1);
+        mServer = new SimulatedAudioServer(new RecordingEffectBackend(), seed);
+        mRandom = new Random(seed);
+        mMaxSessions = (int) getLong(options, "sessions", 32);
+        mRates[OPEN] = getDouble(options, "openRate", 50);
+        mRates[CLOSE] = getDouble(options, "closeRate", mRates[OPEN]);
+        mRates[PARAM] = getDouble(options, "paramRate", 200);
+        mRates[CONTROL_LOSS] = getDouble(options, "controlLossRate", 1);
+        for (int event = 0; event < EVENT_NAMES.length; event++) {
+            mLatency[event] = new LatencyHistogram(EVENT_NAMES[event]);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        final AudioServerTrafficDriver driver = new AudioServerTrafficDriver(options);
+        driver.setUp(options);
+        final long durationNanos = TimeUnit.SECONDS.toNanos(getLong(options, "duration", 10));
+        final long elapsed = driver.run(durationNanos);
+        driver.closeAll();
+        final PrintWriter pw = new PrintWriter(System.out, true);
+        final int leaked = driver.report(pw, elapsed);
+        System.exit(leaked > 0 ? 1 : 0);
+    }
+
+    private void setUp(final Map<String, String> options) throws Exception {
+        // probe the capabilities before any fault is injected
+        mContext = BenchmarkEnvironment.createContext(mServer);
+        ControlPanelEffect.setDspUpdateParallelism((int) getLong(options, "parallelism", 4));
+        mServer.setCallLatencyNanos(
+                TimeUnit.MICROSECONDS.toNanos(getLong(options, "latencyMicros", 100)),
+                TimeUnit.MICROSECONDS.toNanos(getLong(options, "jitterMicros", 100)));
+        mServer.setMaxEffectsPerSession((int) getLong(options, "maxEffectsPerSession", 4));
+        mServer.setFailureRate(getDouble(options, "failureRate", 0.001));
+    }
+
+    /**
+     * Runs the traffic for the given time.
+     *
+     * @return the time in ns it took including the events still due at the end
+     */
+    private long run(final long durationNanos) {
+        final long start = System.nanoTime();
+        final long[] due = new long[EVENT_NAMES.length];
+        for (int event = 0; event < EVENT_NAMES.length; event++) {
+            due[event] = nextArrival(start, mRates[event]);
+        }
+        while (true) {
+            int event = 0;
+            for (int i = 1; i < due.length; i++) {
+                if (due[i] < due[event]) {
+                    event = i;
+                }
+            }
+            if (due[event] - start >= durationNanos) {
+                break;
+            }
+            final long wait = due[event] - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (execute(event)) {
+                mLatency[event].record(System.nanoTime() - due[event]);
+            }
+            due[event] = nextArrival(due[event], mRates[event]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long nextArrival(final long now, final double rate) {
+        if (rate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        final double gapSeconds = -Math.log(1 - mRandom.nextDouble()) / rate;
+        return now + (long) (gapSeconds * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Runs one event.
+     *
+     * @return false if the event was skipped, e.g. a close without open sessions
+     */
+    private boolean execute(final int event) {
+        if ((event == OPEN && mOpenSessions.size() >= mMaxSessions)
+                || (event != OPEN && mOpenSessions.isEmpty())) {
+            mSkipped[event]++;
+            return false;
+        }
+        try {
+            switch (event) {
+            case OPEN:
+                final int session = mNextSession++;
+                mOpenSessions.add(session);
+                ControlPanelEffect.openSession(mContext, PACKAGE_NAME, session);
+                break;
+            case CLOSE:
+                ControlPanelEffect.closeSession(mContext, PACKAGE_NAME,
+                        mOpenSessions.remove(mRandom.nextInt(mOpenSessions.size())));
+                break;
+            case PARAM:
+                changeParameter();
+                ControlPanelEffect.updateDsp(mContext, SCOPE);
+                break;
+            case CONTROL_LOSS:
+                mServer.loseControl(mOpenSessions.get(mRandom.nextInt(mOpenSessions.size())));
+                break;
+            }
+        } catch (final RuntimeException e) {
+            mErrors[event]++;
+        }
+        mExecuted[event]++;
+        return true;
+    }
+
+    private void changeParameter() {
+        final int step = mStep++;
+        switch (step % 3) {
+        case 0:
+            ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.bb_strength,
+                    (step * 37) % 1000);
+            break;
+        case 1:
+            ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.virt_strength,
+                    (step * 53) % 1000);
+            break;
+        default:
+            ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.eq_current_preset,
+                    step % 10);
+            break;
+        }
+    }
+
+    private void closeAll() {
+        for (int session : mOpenSessions) {
+            ControlPanelEffect.closeSession(mContext, PACKAGE_NAME, session);
+        }
+        mOpenSessions.clear();
+        ControlPanelEffect.flushPendingWrites(mContext);
+    }
+
+    /**
+     * Prints the results.
+     *
+     * @return the number of effect instances still alive with all sessions closed
+     */
+    private int report(final PrintWriter pw, final long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        pw.println("Traffic: " + String.format("%.1f", seconds) + "s");
+        for (int event = 0; event < EVENT_NAMES.length; event++) {
+            total += mExecuted[event];
+            pw.println("  " + EVENT_NAMES[event] + ": executed=" + mExecuted[event]
+                    + " skipped=" + mSkipped[event] + " errors=" + mErrors[event]
+                    + " throughput=" + String.format("%.1f", mExecuted[event] / seconds) + "/s");
+        }
+        pw.println("  total throughput=" + String.format("%.1f", total / seconds) + "/s");
+        pw.println("Latency from due time:");
+        for (LatencyHistogram histogram : mLatency) {
+            histogram.dump(pw, "  ");
+        }
+        pw.println("Audio server: calls=" + mServer.getCallCount() + " creates="
+                + mServer.getCreateCount() + " releases=" + mServer.getReleaseCount()
+                + " injectedFailures=" + mServer.getInjectedFailureCount()
+                + " rejectedCreates=" + mServer.getRejectedCreateCount() + " controlLosses="
+                + mServer.getControlLossCount() + " callsWithoutControl="
+                + mServer.getCallsWithoutControlCount());
+        pw.println("ControlPanelEffect: effectFailures="
+                + ControlPanelEffect.getEffectFailureCount() + " liveEffects="
+                + ControlPanelEffect.getLiveEffectCount());
+        ControlPanelEffect.dumpSessionStats(pw, "  ");
+        final int leaked = mServer.getLiveEffectCount();
+        pw.print("Leaked instances: " + leaked);
+        if (leaked > 0) {
+            pw.print(" in sessions");
+            for (int session : mServer.getSessions()) {
+                pw.print(" " + session + "(" + mServer.getLiveEffectCount(session) + ")");
+            }
+        }
+        pw.println();
+        return leaked;
+    }
+
+    private static long getLong(final Map<String, String> options, final String name,
+            final long defaultValue) {
+        final String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private static double getDouble(final Map<String, String> options, final String name,
+            final double defaultValue) {
+        final String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
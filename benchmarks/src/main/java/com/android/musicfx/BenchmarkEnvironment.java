@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.content.Context;
+
+import com.android.musicfx.ControlPanelEffect.EffectSet;
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Sets up ControlPanelEffect for the benchmarks: the recording effect backend, a fresh data
+ * directory, all effects enabled with different values per scope, and no delayed DSP updates
+ * or parked sessions getting in the way of the measured thread.
+ */
+final class BenchmarkEnvironment {
+
+    private static final long ONE_DAY_MS = 24L * 60 * 60 * 1000;
+    private static final String PACKAGE_NAME = "com.android.musicfx.benchmark";
+
+    static final RecordingEffectBackend BACKEND = new RecordingEffectBackend();
+
+    private BenchmarkEnvironment() {
+    }
+
+    static Context createContext() throws IOException {
+        return createContext(BACKEND);
+    }
+
+    static Context createContext(final EffectBackend backend) throws IOException {
+        final File dir = Files.createTempDirectory("musicfx-benchmark").toFile();
+        dir.deleteOnExit();
+        final Context context = new Context(dir);
+        ControlPanelEffect.setEffectBackend(backend);
+
+        // DSP updates are applied explicitly by the benchmarks
+        ControlPanelEffect.setDspUpdateLatency(ONE_DAY_MS, ONE_DAY_MS);
+        ControlPanelEffect.setSessionReleaseGracePeriod(0);
+        ControlPanelEffect.initEffectsPreferences(context);
+        configureScope(context, ControlPanelEffect.SPEAKER_PREF_SCOPE, 0);
+        configureScope(context, ControlPanelEffect.HEADSET_PREF_SCOPE, 1);
+        configureScope(context, ControlPanelEffect.BLUETOOTH_PREF_SCOPE, 2);
+        return context;
+    }
+
+    private static void configureScope(final Context context, final String prefLevel,
+            final int variant) {
+        ControlPanelEffect.edit(context, prefLevel)
+                .putBoolean(Key.global_enabled, true)
+                .putBoolean(Key.eq_enabled, true)
+                .putBoolean(Key.bb_enabled, true)
+                .putInt(Key.bb_strength, 300 + variant * 100)
+                .putBoolean(Key.virt_enabled, true)
+                .putInt(Key.virt_strength, 500 + variant * 100)
+                .putBoolean(Key.pr_enabled, variant > 0)
+                .putInt(Key.pr_current_preset, variant)
+                .putInt(Key.eq_current_preset, variant)
+                .apply();
+    }
+
+    static int[] openSessions(final Context context, final int count) {
+        final int[] sessions = new int[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = 1000 + i;
+            ControlPanelEffect.openSession(context, PACKAGE_NAME, sessions[i]);
+        }
+        return sessions;
+    }
+
+    static EffectSet getEffectSet(final int session) {
+        return ControlPanelEffect.mAudioSessions.get(session);
+    }
+
+    /**
+     * Runs the task on the effect control thread, like the broadcast receivers of the
+     * SystemService, and waits for it.
+     */
+    static void runOnControlThread(final Runnable task) {
+        final CountDownLatch done = new CountDownLatch(1);
+        ControlPanelEffect.getControlHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void closeSessions(final Context context, final int[] sessions) {
+        for (int session : sessions) {
+            ControlPanelEffect.closeSession(context, PACKAGE_NAME, session);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.content.Context;
+
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall time of one parameter change applied to N open sessions, serial (parallelism 1)
+ * against the worker pool. callLatencyMicros blocks every effect call to stand in for the
+ * binder round trip, with 0 only the Java side is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FanOutBenchmark {
+
+    private static final String SCOPE = ControlPanelEffect.SPEAKER_PREF_SCOPE;
+
+    @Param({ "1", "4", "16", "64" })
+    public int sessions;
+
+    @Param({ "1", "4" })
+    public int parallelism;
+
+    @Param({ "0", "100" })
+    public int callLatencyMicros;
+
+    private Context mContext;
+    private int[] mSessions;
+    private int mStep;
+
+    private final Runnable mRouteChange = new Runnable() {
+        @Override
+        public void run() {
+            ControlPanelEffect.setParameterInt(mContext, ControlPanelEffect.GLOBAL_PREF_SCOPE,
+                    Key.output_route, (mStep++ & 1) == 0 ? RouteTable.HEADSET.mId
+                            : RouteTable.SPEAKER.mId);
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mContext = BenchmarkEnvironment.createContext();
+        ControlPanelEffect.setDspUpdateParallelism(parallelism);
+        mSessions = BenchmarkEnvironment.openSessions(mContext, sessions);
+        BenchmarkEnvironment.BACKEND.setCallLatencyNanos(
+                TimeUnit.MICROSECONDS.toNanos(callLatencyMicros));
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkEnvironment.BACKEND.setCallLatencyNanos(0);
+        BenchmarkEnvironment.closeSessions(mContext, mSessions);
+        ControlPanelEffect.flushPendingWrites(mContext);
+    }
+
+    /** A bass boost change, one effect call per session. */
+    @Benchmark
+    public void strengthChange() {
+        ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.bb_strength, mStep++ % 1000);
+        ControlPanelEffect.updateDsp(mContext, SCOPE);
+    }
+
+    /**
+     * Headset plugged or unplugged until every session runs with the other scope's values,
+     * handled on the control thread like the audio device callback does.
+     */
+    @Benchmark
+    public void routeChange() {
+        BenchmarkEnvironment.runOnControlThread(mRouteChange);
+    }
+
+    /** An equalizer preset change, all band levels change in every session. */
+    @Benchmark
+    public void presetSwitch() {
+        ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.eq_current_preset,
+                mStep++ % 10);
+        ControlPanelEffect.updateDsp(mContext, SCOPE);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.content.Context;
+
+import com.android.musicfx.ControlPanelEffect.EffectCommands;
+import com.android.musicfx.ControlPanelEffect.EffectSet;
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parameter path as driven by the control panel with one open session: knob drags,
+ * preset and scope switches, reading band levels back and applying snapshots to a session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParameterPathBenchmark {
+
+    private static final String SCOPE = ControlPanelEffect.SPEAKER_PREF_SCOPE;
+
+    private Context mContext;
+    private int[] mSessions;
+    private EffectSet mEffectSet;
+    private EffectCommands[] mCommands;
+    private int mStep;
+
+    private final Runnable mRouteChange = new Runnable() {
+        @Override
+        public void run() {
+            ControlPanelEffect.setParameterInt(mContext, ControlPanelEffect.GLOBAL_PREF_SCOPE,
+                    Key.output_route, (mStep++ & 1) == 0 ? RouteTable.HEADSET.mId
+                            : RouteTable.SPEAKER.mId);
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mContext = BenchmarkEnvironment.createContext();
+        mSessions = BenchmarkEnvironment.openSessions(mContext, 1);
+        mEffectSet = BenchmarkEnvironment.getEffectSet(mSessions[0]);
+        mCommands = new EffectCommands[] {
+                ControlPanelEffect.getCommands(mContext, ControlPanelEffect.SPEAKER_PREF_SCOPE),
+                ControlPanelEffect.getCommands(mContext, ControlPanelEffect.HEADSET_PREF_SCOPE),
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkEnvironment.closeSessions(mContext, mSessions);
+        ControlPanelEffect.flushPendingWrites(mContext);
+    }
+
+    /** One knob movement as stored by the UI thread, the DSP update is deferred. */
+    @Benchmark
+    public void knobDrag() {
+        ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.bb_strength, mStep++ % 1000);
+    }
+
+    /** One knob movement applied to the session right away. */
+    @Benchmark
+    public void knobDragApplied() {
+        ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.bb_strength, mStep++ % 1000);
+        ControlPanelEffect.updateDsp(mContext, SCOPE);
+    }
+
+    /** One equalizer band slider movement applied to the session. */
+    @Benchmark
+    public void eqBandDragApplied() {
+        final int step = mStep++;
+        ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.eq_band_level,
+                (step % 30 - 15) * 100, step % 5);
+        ControlPanelEffect.updateDsp(mContext, SCOPE);
+    }
+
+    /** Selecting another equalizer preset, changes all band levels at once. */
+    @Benchmark
+    public void presetSwitch() {
+        ControlPanelEffect.setParameterInt(mContext, SCOPE, Key.eq_current_preset,
+                mStep++ % 10);
+        ControlPanelEffect.updateDsp(mContext, SCOPE);
+    }
+
+    /**
+     * Headset plugged or unplugged, the session switches to the other scope's values. Runs on
+     * the control thread like the audio device callback, which applies the route change before
+     * returning, so every operation is exactly one DSP update.
+     */
+    @Benchmark
+    public void scopeSwitch() {
+        BenchmarkEnvironment.runOnControlThread(mRouteChange);
+    }
+
+    @Benchmark
+    public int[] getParameterIntArray() {
+        return ControlPanelEffect.getParameterIntArray(mContext, SCOPE, Key.eq_band_level);
+    }
+
+    /** Replaying the commands the session already has, no effect is called. */
+    @Benchmark
+    public void updateEffectSetUnchanged() {
+        ControlPanelEffect.updateEffectSet(mCommands[0], mEffectSet);
+    }
+
+    /** Alternating between the commands of two scopes, every parameter changes. */
+    @Benchmark
+    public void updateEffectSetChanged() {
+        ControlPanelEffect.updateEffectSet(mCommands[mStep++ & 1], mEffectSet);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory effect backend. No audio is processed, every call that would be a binder
+ * transaction to the audio server is counted and the values set are kept per effect. The
+ * equalizer has the band layout of the default platform equalizer.
+ */
+final class RecordingEffectBackend implements EffectBackend {
+
+    private static final int[] CENTER_FREQ = { 60000, 230000, 910000, 3600000, 14000000 };
+    private static final String[] PRESETS = { "Normal", "Classical", "Dance", "Flat", "Folk",
+            "Heavy Metal", "Hip Hop", "Jazz", "Pop", "Rock" };
+
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mCreated = new AtomicLong();
+    private final AtomicInteger mNextSession = new AtomicInteger(1 << 20);
+    private final Set<RecordingEffect> mLive = ConcurrentHashMap.newKeySet();
+    private volatile long mCallLatencyNanos;
+
+    /**
+     * Makes every call block for the given time, as a stand-in for the binder round trip.
+     */
+    void setCallLatencyNanos(final long nanos) {
+        mCallLatencyNanos = nanos;
+    }
+
+    /**
+     * Returns the number of calls made into all effects so far, creation included.
+     */
+    long getCallCount() {
+        return mCalls.get();
+    }
+
+    /**
+     * Returns the number of effects created so far.
+     */
+    long getCreateCount() {
+        return mCreated.get();
+    }
+
+    /**
+     * Returns the number of effects created and not yet released.
+     */
+    int getInstanceCount() {
+        return mLive.size();
+    }
+
+    /**
+     * Returns the effects created and not yet released.
+     */
+    List<EffectHandle> getLiveEffects() {
+        return new ArrayList<EffectHandle>(mLive);
+    }
+
+    @Override
+    public EnumSet<Type> queryEffects() {
+        return EnumSet.allOf(Type.class);
+    }
+
+    @Override
+    public EffectHandle create(final Type type, final int priority, final int audioSession) {
+        call();
+        final RecordingEffect effect = new RecordingEffect(type, audioSession);
+        mCreated.incrementAndGet();
+        mLive.add(effect);
+        return effect;
+    }
+
+    @Override
+    public int openProbeSession() {
+        return mNextSession.getAndIncrement();
+    }
+
+    @Override
+    public void closeProbeSession(final int audioSession) {
+    }
+
+    private void call() {
+        mCalls.incrementAndGet();
+        final long latency = mCallLatencyNanos;
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+    }
+
+    /**
+     * Effect keeping the values last set. Calls are serialized by the effect set owning it.
+     */
+    private final class RecordingEffect implements EffectHandle {
+        private final Type mType;
+        private final int mAudioSession;
+        private final short[] mBandLevels = new short[CENTER_FREQ.length];
+        private boolean mEnabled;
+        private short mStrength;
+        private short mPreset = -1;
+        private volatile boolean mReleased;
+
+        RecordingEffect(final Type type, final int audioSession) {
+            mType = type;
+            mAudioSession = audioSession;
+        }
+
+        @Override
+        public Type getType() {
+            return mType;
+        }
+
+        @Override
+        public int getAudioSession() {
+            return mAudioSession;
+        }
+
+        @Override
+        public void setEnabled(final boolean enabled) {
+            record();
+            mEnabled = enabled;
+        }
+
+        @Override
+        public void setStrength(final short strength) {
+            check(mType == Type.VIRTUALIZER || mType == Type.BASS_BOOST
+                    || mType == Type.STEREO_WIDE, "setStrength");
+            record();
+            mStrength = strength;
+        }
+
+        @Override
+        public void setPreset(final short preset) {
+            check(mType == Type.PRESET_REVERB, "setPreset");
+            record();
+            mPreset = preset;
+        }
+
+        @Override
+        public void setBandLevel(final short band, final short level) {
+            check(mType == Type.EQUALIZER, "setBandLevel");
+            record();
+            mBandLevels[band] = level;
+        }
+
+        @Override
+        public void setBandLevels(final short[] levels) {
+            check(mType == Type.EQUALIZER, "setBandLevels");
+            if (levels.length != mBandLevels.length) {
+                throw new IllegalArgumentException("settings invalid band count: "
+                        + levels.length);
+            }
+            record();
+            mPreset = -1;
+            System.arraycopy(levels, 0, mBandLevels, 0, mBandLevels.length);
+        }
+
+        @Override
+        public short[] getBandLevelRange() {
+            check(mType == Type.EQUALIZER, "getBandLevelRange");
+            record();
+            return new short[] { -1500, 1500 };
+        }
+
+        @Override
+        public short getNumberOfBands() {
+            check(mType == Type.EQUALIZER, "getNumberOfBands");
+            record();
+            return (short) CENTER_FREQ.length;
+        }
+
+        @Override
+        public int getCenterFreq(final short band) {
+            check(mType == Type.EQUALIZER, "getCenterFreq");
+            record();
+            return CENTER_FREQ[band];
+        }
+
+        @Override
+        public short getNumberOfPresets() {
+            check(mType == Type.EQUALIZER, "getNumberOfPresets");
+            record();
+            return (short) PRESETS.length;
+        }
+
+        @Override
+        public String getPresetName(final short preset) {
+            check(mType == Type.EQUALIZER, "getPresetName");
+            record();
+            return PRESETS[preset];
+        }
+
+        @Override
+        public void usePreset(final short preset) {
+            check(mType == Type.EQUALIZER, "usePreset");
+            record();
+            mPreset = preset;
+            for (int band = 0; band < mBandLevels.length; band++) {
+                mBandLevels[band] = (short) (((preset * 7 + band * 3) % 13 - 6) * 100);
+            }
+        }
+
+        @Override
+        public short getBandLevel(final short band) {
+            check(mType == Type.EQUALIZER, "getBandLevel");
+            record();
+            return mBandLevels[band];
+        }
+
+        @Override
+        public boolean getStrengthSupported() {
+            check(mType == Type.VIRTUALIZER, "getStrengthSupported");
+            record();
+            return true;
+        }
+
+        @Override
+        public boolean canVirtualizeTransaural() {
+            check(mType == Type.VIRTUALIZER, "canVirtualizeTransaural");
+            record();
+            return true;
+        }
+
+        @Override
+        public void release() {
+            if (mReleased) {
+                throw new IllegalStateException("Effect already released");
+            }
+            mReleased = true;
+            mLive.remove(this);
+        }
+
+        private void check(final boolean supported, final String method) {
+            if (!supported) {
+                throw new UnsupportedOperationException(method + " not supported by " + mType);
+            }
+        }
+
+        private void record() {
+            if (mReleased) {
+                throw new IllegalStateException("Effect already released");
+            }
+            call();
+        }
+
+        @Override
+        public String toString() {
+            return mType + " session=" + mAudioSession + " enabled=" + mEnabled + " strength="
+                    + mStrength + " preset=" + mPreset + " levels="
+                    + Arrays.toString(mBandLevels);
+        }
+    }
+}
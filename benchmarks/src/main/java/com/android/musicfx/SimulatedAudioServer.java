@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for the audio effect service in front of another effect backend, usually the
+ * RecordingEffectBackend. Adds what the real server does to the effect layer under load:
+ * <ul>
+ * <li>a per-call latency, a fixed part plus a uniformly distributed jitter</li>
+ * <li>a limit of effect instances per audio session, creating more throws
+ * UnsupportedOperationException</li>
+ * <li>random IllegalStateException or UnsupportedOperationException failures of calls</li>
+ * <li>control loss: another client takes over the effects of a session, every further call
+ * on them throws UnsupportedOperationException until they are released</li>
+ * </ul>
+ * Live instances are tracked per session, so instances never released by the caller show up
+ * as leaks.
+ */
+final class SimulatedAudioServer implements EffectBackend {
+
+    private final EffectBackend mDelegate;
+    private final Random mRandom;
+
+    private volatile long mCallLatencyNanos;
+    private volatile long mCallJitterNanos;
+    private volatile int mMaxEffectsPerSession = Integer.MAX_VALUE;
+    private volatile double mFailureRate;
+
+    /** Live effects per audio session, guarded by the server. */
+    private final Map<Integer, List<SimulatedEffect>> mSessions =
+            new HashMap<Integer, List<SimulatedEffect>>();
+    private int mLiveEffects;
+
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mCreated = new AtomicLong();
+    private final AtomicLong mReleased = new AtomicLong();
+    private final AtomicLong mInjectedFailures = new AtomicLong();
+    private final AtomicLong mRejectedCreates = new AtomicLong();
+    private final AtomicLong mControlLosses = new AtomicLong();
+    private final AtomicLong mCallsWithoutControl = new AtomicLong();
+
+    SimulatedAudioServer(final EffectBackend delegate, final long seed) {
+        mDelegate = delegate;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Sets the time every call blocks for: latency plus a random extra of up to jitter.
+     */
+    void setCallLatencyNanos(final long latency, final long jitter) {
+        if (latency < 0 || jitter < 0) {
+            throw new IllegalArgumentException("latency " + latency + ", jitter " + jitter);
+        }
+        mCallLatencyNanos = latency;
+        mCallJitterNanos = jitter;
+    }
+
+    void setMaxEffectsPerSession(final int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max effects per session " + max);
+        }
+        mMaxEffectsPerSession = max;
+    }
+
+    /**
+     * Sets the probability of a call failing, in which case it throws IllegalStateException or
+     * UnsupportedOperationException with equal chance.
+     */
+    void setFailureRate(final double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("failure rate " + rate);
+        }
+        mFailureRate = rate;
+    }
+
+    /**
+     * Takes the control of all live effects of the session away, as done by the audio server
+     * when a client with a higher priority creates the same effects.
+     *
+     * @return the number of effects that lost control
+     */
+    int loseControl(final int audioSession) {
+        int lost = 0;
+        synchronized (this) {
+            final List<SimulatedEffect> effects = mSessions.get(audioSession);
+            if (effects != null) {
+                for (SimulatedEffect effect : effects) {
+                    if (effect.mHasControl) {
+                        effect.mHasControl = false;
+                        lost++;
+                    }
+                }
+            }
+        }
+        if (lost > 0) {
+            mControlLosses.incrementAndGet();
+        }
+        return lost;
+    }
+
+    /**
+     * Returns the sessions with live effects.
+     */
+    synchronized int[] getSessions() {
+        final int[] sessions = new int[mSessions.size()];
+        int i = 0;
+        for (Integer session : mSessions.keySet()) {
+            sessions[i++] = session;
+        }
+        return sessions;
+    }
+
+    synchronized int getLiveEffectCount() {
+        return mLiveEffects;
+    }
+
+    synchronized int getLiveEffectCount(final int audioSession) {
+        final List<SimulatedEffect> effects = mSessions.get(audioSession);
+        return effects == null ? 0 : effects.size();
+    }
+
+    long getCallCount() {
+        return mCalls.get();
+    }
+
+    long getCreateCount() {
+        return mCreated.get();
+    }
+
+    long getReleaseCount() {
+        return mReleased.get();
+    }
+
+    long getInjectedFailureCount() {
+        return mInjectedFailures.get();
+    }
+
+    long getRejectedCreateCount() {
+        return mRejectedCreates.get();
+    }
+
+    long getControlLossCount() {
+        return mControlLosses.get();
+    }
+
+    long getCallsWithoutControlCount() {
+        return mCallsWithoutControl.get();
+    }
+
+    @Override
+    public EnumSet<Type> queryEffects() {
+        return mDelegate.queryEffects();
+    }
+
+    @Override
+    public EffectHandle create(final Type type, final int priority, final int audioSession) {
+        call(true);
+        synchronized (this) {
+            final List<SimulatedEffect> effects = mSessions.get(audioSession);
+            if (effects != null && effects.size() >= mMaxEffectsPerSession) {
+                mRejectedCreates.incrementAndGet();
+                throw new UnsupportedOperationException("Session " + audioSession
+                        + " has no room for another effect");
+            }
+        }
+        final SimulatedEffect effect = new SimulatedEffect(
+                mDelegate.create(type, priority, audioSession));
+        synchronized (this) {
+            List<SimulatedEffect> effects = mSessions.get(audioSession);
+            if (effects == null) {
+                effects = new ArrayList<SimulatedEffect>();
+                mSessions.put(audioSession, effects);
+            }
+            effects.add(effect);
+            mLiveEffects++;
+        }
+        mCreated.incrementAndGet();
+        return effect;
+    }
+
+    @Override
+    public int openProbeSession() {
+        return mDelegate.openProbeSession();
+    }
+
+    @Override
+    public void closeProbeSession(final int audioSession) {
+        mDelegate.closeProbeSession(audioSession);
+    }
+
+    private void call(final boolean mayFail) {
+        mCalls.incrementAndGet();
+        final long latency = mCallLatencyNanos;
+        final long jitter = mCallJitterNanos;
+        final double failureRate = mFailureRate;
+        double failure = 1;
+        long extra = 0;
+        if (jitter > 0 || failureRate > 0) {
+            synchronized (mRandom) {
+                extra = jitter > 0 ? (long) (mRandom.nextDouble() * jitter) : 0;
+                failure = failureRate > 0 ? mRandom.nextDouble() : 1;
+            }
+        }
+        if (latency + extra > 0) {
+            LockSupport.parkNanos(latency + extra);
+        }
+        if (mayFail && failure < failureRate) {
+            mInjectedFailures.incrementAndGet();
+            if (failure < failureRate / 2) {
+                throw new IllegalStateException("Injected failure: dead object");
+            }
+            throw new UnsupportedOperationException("Injected failure: invalid operation");
+        }
+    }
+
+    private final class SimulatedEffect implements EffectHandle {
+        private final EffectHandle mEffect;
+        volatile boolean mHasControl = true;
+
+        SimulatedEffect(final EffectHandle effect) {
+            mEffect = effect;
+        }
+
+        private void call() {
+            SimulatedAudioServer.this.call(true);
+            if (!mHasControl) {
+                mCallsWithoutControl.incrementAndGet();
+                throw new UnsupportedOperationException("Effect " + mEffect.getType()
+                        + " on session " + mEffect.getAudioSession() + " lost control");
+            }
+        }
+
+        @Override
+        public Type getType() {
+            return mEffect.getType();
+        }
+
+        @Override
+        public int getAudioSession() {
+            return mEffect.getAudioSession();
+        }
+
+        @Override
+        public void setEnabled(final boolean enabled) {
+            call();
+            mEffect.setEnabled(enabled);
+        }
+
+        @Override
+        public void setStrength(final short strength) {
+            call();
+            mEffect.setStrength(strength);
+        }
+
+        @Override
+        public void setPreset(final short preset) {
+            call();
+            mEffect.setPreset(preset);
+        }
+
+        @Override
+        public void setBandLevel(final short band, final short level) {
+            call();
+            mEffect.setBandLevel(band, level);
+        }
+
+        @Override
+        public void setBandLevels(final short[] levels) {
+            call();
+            mEffect.setBandLevels(levels);
+        }
+
+        @Override
+        public short[] getBandLevelRange() {
+            call();
+            return mEffect.getBandLevelRange();
+        }
+
+        @Override
+        public short getNumberOfBands() {
+            call();
+            return mEffect.getNumberOfBands();
+        }
+
+        @Override
+        public int getCenterFreq(final short band) {
+            call();
+            return mEffect.getCenterFreq(band);
+        }
+
+        @Override
+        public short getNumberOfPresets() {
+            call();
+            return mEffect.getNumberOfPresets();
+        }
+
+        @Override
+        public String getPresetName(final short preset) {
+            call();
+            return mEffect.getPresetName(preset);
+        }
+
+        @Override
+        public void usePreset(final short preset) {
+            call();
+            mEffect.usePreset(preset);
+        }
+
+        @Override
+        public short getBandLevel(final short band) {
+            call();
+            return mEffect.getBandLevel(band);
+        }
+
+        @Override
+        public boolean getStrengthSupported() {
+            call();
+            return mEffect.getStrengthSupported();
+        }
+
+        @Override
+        public boolean canVirtualizeTransaural() {
+            call();
+            return mEffect.canVirtualizeTransaural();
+        }
+
+        @Override
+        public void release() {
+            // never fails, the server frees the instance even if the client is gone
+            SimulatedAudioServer.this.call(false);
+            synchronized (SimulatedAudioServer.this) {
+                final List<SimulatedEffect> effects = mSessions.get(getAudioSession());
+                if (effects == null || !effects.remove(this)) {
+                    throw new IllegalStateException("Effect already released");
+                }
+                if (effects.isEmpty()) {
+                    mSessions.remove(getAudioSession());
+                }
+                mLiveEffects--;
+            }
+            mReleased.incrementAndGet();
+            mEffect.release();
+        }
+    }
+}
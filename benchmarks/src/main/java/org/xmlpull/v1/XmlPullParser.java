@@ -0,0 +1,28 @@
+package org.xmlpull.v1;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The part of the XmlPull API used by the profile migration.
+ */
+public interface XmlPullParser {
+
+    int START_DOCUMENT = 0;
+    int END_DOCUMENT = 1;
+    int START_TAG = 2;
+    int END_TAG = 3;
+    int TEXT = 4;
+
+    void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException;
+
+    int getEventType() throws XmlPullParserException;
+
+    int next() throws XmlPullParserException, IOException;
+
+    String getName();
+
+    String getAttributeValue(String namespace, String name);
+
+    String nextText() throws XmlPullParserException, IOException;
+}
@@ -0,0 +1,8 @@
+package org.xmlpull.v1;
+
+public class XmlPullParserException extends Exception {
+
+    public XmlPullParserException(final String message) {
+        super(message);
+    }
+}
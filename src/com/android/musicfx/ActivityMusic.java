@@ -43,11 +43,7 @@ import android.content.res.ColorStateList;
 import android.content.res.Configuration;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
-import android.media.AudioFormat;
 import android.media.AudioManager;
-import android.media.audiofx.AudioEffect;
-import android.media.audiofx.AudioEffect.Descriptor;
-import android.media.audiofx.Virtualizer;
 import android.os.Bundle;
 import android.os.SystemProperties;
 import android.support.v4.widget.DrawerLayout;
@@ -109,7 +105,6 @@ public class ActivityMusic extends AppCompatActivity {
      * Indicates if Virtualizer effect is supported.
      */
     private boolean mVirtualizerSupported;
-    private boolean mVirtualizerIsHeadphoneOnly;
     /**
      * Indicates if BassBoost effect is supported.
      */
@@ -148,9 +143,18 @@ public class ActivityMusic extends AppCompatActivity {
     private ArrayAdapter<String> mSWStrengthAdapter;
     private ArrayAdapter<String> mPRPresetAdapter;
 
-    private boolean mIsHeadsetOn = false;
-    private boolean mIsSpeakerOn = false;
-    private boolean mIsBluetoothOn = false;
+    /**
+     * Drawer items and titles of the output routes, indexed by route id.
+     */
+    private static final int[] ROUTE_MENU_IDS = new int[] {
+        R.id.menu_speaker, R.id.menu_headset, R.id.menu_bluetooth, R.id.menu_usb,
+        R.id.menu_hdmi, R.id.menu_dock, R.id.menu_line
+    };
+    private static final int[] ROUTE_TITLES = new int[] {
+        R.string.drawer_item_speaker, R.string.drawer_item_headset,
+        R.string.drawer_item_bluetooth, R.string.drawer_item_usb, R.string.drawer_item_hdmi,
+        R.string.drawer_item_dock, R.string.drawer_item_line
+    };
 
     private TextView mCurrentLevelText;
     private StringBuilder mFormatBuilder = new StringBuilder();
@@ -180,6 +184,13 @@ public class ActivityMusic extends AppCompatActivity {
      */
     private Context mContext;
 
+    /**
+     * Set once the effect manifest and the scope parameters are loaded and the effect views
+     * are initialized.
+     */
+    private boolean mEffectsLoaded;
+    private boolean mResumed;
+
     private final BroadcastReceiver mPrefLevelChanged = new BroadcastReceiver() {
         @Override
         public void onReceive(final Context context, final Intent intent) {
@@ -209,32 +220,6 @@ public class ActivityMusic extends AppCompatActivity {
 
         // Init context to be used in listeners
         mContext = this;
-        mCurrentLevel = ControlPanelEffect.getCurrentPrevLevel(this);
-        Log.d(TAG, "onCreate " + mCurrentLevel);
-
-        ControlPanelEffect.initEffectsPreferences(mContext);
-
-        // query available effects
-        final Descriptor[] effects = AudioEffect.queryEffects();
-
-        // Determine available/supported effects
-        Log.d(TAG, "Available effects:");
-        for (final Descriptor effect : effects) {
-            Log.d(TAG, effect.name.toString() + ", type: " + effect.type.toString());
-
-            if (effect.type.equals(AudioEffect.EFFECT_TYPE_VIRTUALIZER)) {
-                mVirtualizerSupported = true;
-                mVirtualizerIsHeadphoneOnly = !isVirtualizerTransauralSupported();
-            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_BASS_BOOST)) {
-                mBassBoostSupported = true;
-            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_EQUALIZER)) {
-                mEqualizerSupported = true;
-            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_PRESET_REVERB)) {
-                mPresetReverbSupported = true;
-            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_STEREOWIDE)) {
-                mStereoWideSupported = true;
-            }
-        }
 
         setContentView(R.layout.music_main);
 
@@ -246,6 +231,97 @@ public class ActivityMusic extends AppCompatActivity {
         mTextColor = getResources().getColor(R.color.textColor);
         mSpinoffColor = getResources().getColor(R.color.spinner_disabled);
 
+        // Load string resource of reverb presets
+        mReverbPresetNames = new String[mReverbPresetRSids.length];
+        for (short i = 0; i < mReverbPresetRSids.length; ++i) {
+            mReverbPresetNames[i] = getString(mReverbPresetRSids[i]);
+        }
+        mSWStrengthNames = getResources().getStringArray(R.array.stereowide_modes);
+
+        mCurrentLevelText = (TextView)findViewById(R.id.switchstatus);
+        mCurrentLevelText.setCompoundDrawableTintList(new ColorStateList(new int[][] { new int[0] }, new int[] { getResources().getColor(R.color.current_out_source_color) }));
+
+        mDrawerLayout = (DrawerLayout) findViewById(R.id.drawer_layout);
+        mDrawerList = (NavigationView) findViewById(R.id.left_drawer);
+
+        // Set the list's click listener
+        mDrawerList.setNavigationItemSelectedListener(new NavigationView.OnNavigationItemSelectedListener() {
+            @Override
+            public boolean onNavigationItemSelected(MenuItem item) {
+                int id = item.getItemId();
+                mDrawerLayout.closeDrawer(mDrawerList);
+                if (!mEffectsLoaded) {
+                    return true;
+                }
+                for (int routeId = 0; routeId < ROUTE_MENU_IDS.length; routeId++) {
+                    if (id == ROUTE_MENU_IDS[routeId]) {
+                        final RouteTable.Route route = RouteTable.forId(routeId);
+                        // the active route may use the scope of the connected device
+                        final String current = ControlPanelEffect.getCurrentPrevLevel(mContext);
+                        updateForLevel(RouteTable.forScope(current) == route ? current
+                                : route.mScope);
+                    }
+                }
+                return true;
+            }
+        });
+        mDrawerToggle = new ActionBarDrawerToggle(this, mDrawerLayout, toolbar,
+                R.string.drawer_open, R.string.drawer_close);
+        mDrawerLayout.setDrawerListener(mDrawerToggle);
+        mDrawerToggle.syncState();
+
+        // The manifest and the scope parameters are normally loaded by the SystemService
+        // already, otherwise load them on the control thread instead of the UI thread. An
+        // evicted Bluetooth device scope is loaded there as well.
+        final EffectCapabilities capabilities = EffectCapabilities.peek();
+        if (capabilities != null && ControlPanelEffect.isEffectsPreferencesInitialized()
+                && ControlPanelEffect.isConfigLoaded(ControlPanelEffect.GLOBAL_PREF_SCOPE)
+                && ControlPanelEffect.isConfigLoaded(
+                        ControlPanelEffect.getCurrentPrevLevel(this))) {
+            initEffects(capabilities);
+        } else {
+            final Context appContext = getApplicationContext();
+            ControlPanelEffect.getControlHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    ControlPanelEffect.initEffectsPreferences(appContext);
+                    final EffectCapabilities loaded = EffectCapabilities.get(appContext);
+                    ControlPanelEffect.getConfig(appContext,
+                            ControlPanelEffect.getCurrentPrevLevel(appContext));
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isDestroyed()) {
+                                return;
+                            }
+                            initEffects(loaded);
+                            if (mResumed) {
+                                resumeEffects();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Initializes the effect views from the given manifest. The scope parameters must be
+     * loaded already.
+     *
+     * @param capabilities
+     */
+    private void initEffects(final EffectCapabilities capabilities) {
+        mCurrentLevel = ControlPanelEffect.getCurrentPrevLevel(this);
+        Log.d(TAG, "initEffects " + mCurrentLevel);
+
+        // Determine available/supported effects from the probed manifest
+        mVirtualizerSupported = capabilities.mVirtualizerSupported;
+        mBassBoostSupported = capabilities.mBassBoostSupported;
+        mEqualizerSupported = capabilities.mEqualizerSupported;
+        mPresetReverbSupported = capabilities.mPresetReverbSupported;
+        mStereoWideSupported = capabilities.mStereoWideSupported;
+
         // Fill array with presets from AudioEffects call.
         // allocate a space for 1 extra strings (User)
         final int numPresets = ControlPanelEffect.getParameterInt(mContext, mCurrentLevel,
@@ -259,16 +335,6 @@ public class ActivityMusic extends AppCompatActivity {
         mEQPresetNames[numPresets] = getString(R.string.user);
         mEQPresetUserPos = numPresets;
 
-        // Load string resource of reverb presets
-        mReverbPresetNames = new String[mReverbPresetRSids.length];
-        for (short i = 0; i < mReverbPresetRSids.length; ++i) {
-            mReverbPresetNames[i] = getString(mReverbPresetRSids[i]);
-        }
-        mSWStrengthNames = getResources().getStringArray(R.array.stereowide_modes);
-
-        mCurrentLevelText = (TextView)findViewById(R.id.switchstatus);
-        mCurrentLevelText.setCompoundDrawableTintList(new ColorStateList(new int[][] { new int[0] }, new int[] { getResources().getColor(R.color.current_out_source_color) }));
-
         // Watch for button clicks and initialization.
         if (mVirtualizerSupported || mBassBoostSupported || mEqualizerSupported
                 || mPresetReverbSupported || mStereoWideSupported) {
@@ -291,7 +357,8 @@ public class ActivityMusic extends AppCompatActivity {
 
                     @Override
                     public boolean onSwitchChanged(final Knob knob, boolean on) {
-                        if (on && (!mIsHeadsetOn && !mIsBluetoothOn && mVirtualizerIsHeadphoneOnly)) {
+                        if (on && (RouteTable.getEffectMask(mCurrentLevel)
+                                & RouteTable.mask(EffectBackend.Type.VIRTUALIZER)) == 0) {
                             showHeadsetMsg(getString(R.string.headset_plug));
                             return false;
                         }
@@ -299,6 +366,11 @@ public class ActivityMusic extends AppCompatActivity {
                                 ControlPanelEffect.Key.virt_enabled, on);
                         return true;
                     }
+
+                    @Override
+                    public void onStopTrackingTouch(final Knob knob) {
+                        ControlPanelEffect.flushPendingUpdates();
+                    }
                 });
             }
 
@@ -326,6 +398,11 @@ public class ActivityMusic extends AppCompatActivity {
                                 ControlPanelEffect.Key.bb_enabled, on);
                         return true;
                     }
+
+                    @Override
+                    public void onStopTrackingTouch(final Knob knob) {
+                        ControlPanelEffect.flushPendingUpdates();
+                    }
                 });
             }
 
@@ -366,30 +443,10 @@ public class ActivityMusic extends AppCompatActivity {
             mViewGroup.setVisibility(View.GONE);
             ((TextView) findViewById(R.id.noEffectsTextView)).setVisibility(View.VISIBLE);
         }
-
-        mDrawerLayout = (DrawerLayout) findViewById(R.id.drawer_layout);
-        mDrawerList = (NavigationView) findViewById(R.id.left_drawer);
-
-        // Set the list's click listener
-        mDrawerList.setNavigationItemSelectedListener(new NavigationView.OnNavigationItemSelectedListener() {
-            @Override
-            public boolean onNavigationItemSelected(MenuItem item) {
-                int id = item.getItemId();
-                mDrawerLayout.closeDrawer(mDrawerList);
-                if (id == R.id.menu_speaker) {
-                    updateForLevel(ControlPanelEffect.SPEAKER_PREF_SCOPE);
-                } else if (id == R.id.menu_headset) {
-                    updateForLevel(ControlPanelEffect.HEADSET_PREF_SCOPE);
-                } else if (id == R.id.menu_bluetooth) {
-                    updateForLevel(ControlPanelEffect.BLUETOOTH_PREF_SCOPE);
-                }
-                return true;
-            }
-        });
-        mDrawerToggle = new ActionBarDrawerToggle(this, mDrawerLayout, toolbar,
-                R.string.drawer_open, R.string.drawer_close);
-        mDrawerLayout.setDrawerListener(mDrawerToggle);
-        mDrawerToggle.syncState();
+        mEffectsLoaded = true;
+        if (mToolbarSwitch != null) {
+            mToolbarSwitch.setEnabled(true);
+        }
     }
 
     @Override
@@ -414,35 +471,25 @@ public class ActivityMusic extends AppCompatActivity {
     private void updateForLevel(String level) {
         if (!level.equals(mCurrentLevel)) {
             mCurrentLevel = level;
-            mIsHeadsetOn = mCurrentLevel.equals(ControlPanelEffect.HEADSET_PREF_SCOPE);
-            mIsSpeakerOn = mCurrentLevel.equals(ControlPanelEffect.SPEAKER_PREF_SCOPE);
-            mIsBluetoothOn = mCurrentLevel.equals(ControlPanelEffect.BLUETOOTH_PREF_SCOPE);
             updateUI();
             updateTitle();
         }
     }
 
     private void updateTitle() {
-        if (mCurrentLevel == ControlPanelEffect.SPEAKER_PREF_SCOPE) {
-            setTitle(getResources().getString(R.string.drawer_item_speaker));
-            mDrawerList.getMenu().findItem(R.id.menu_speaker).setChecked(true);
-        } else if (mCurrentLevel == ControlPanelEffect.HEADSET_PREF_SCOPE) {
-            setTitle(getResources().getString(R.string.drawer_item_headset));
-            mDrawerList.getMenu().findItem(R.id.menu_headset).setChecked(true);
-        } else if (mCurrentLevel == ControlPanelEffect.BLUETOOTH_PREF_SCOPE) {
-            setTitle(getResources().getString(R.string.drawer_item_bluetooth));
-            mDrawerList.getMenu().findItem(R.id.menu_bluetooth).setChecked(true);
+        final RouteTable.Route route = RouteTable.forScope(mCurrentLevel);
+        if (route != null) {
+            setTitle(getResources().getString(ROUTE_TITLES[route.mId]));
+            mDrawerList.getMenu().findItem(ROUTE_MENU_IDS[route.mId]).setChecked(true);
         }
     }
 
     private void updateCurrentLevelInfo(String level) {
         String current = getResources().getString(R.string.current_output);
-        if (level == ControlPanelEffect.SPEAKER_PREF_SCOPE) {
-            mCurrentLevelText.setText(current  + " " + getResources().getString(R.string.drawer_item_speaker));
-        } else if (level == ControlPanelEffect.HEADSET_PREF_SCOPE) {
-            mCurrentLevelText.setText(current  + " " + getResources().getString(R.string.drawer_item_headset));
-        } else if (level == ControlPanelEffect.BLUETOOTH_PREF_SCOPE) {
-            mCurrentLevelText.setText(current  + " " + getResources().getString(R.string.drawer_item_bluetooth));
+        final RouteTable.Route route = RouteTable.forScope(level);
+        if (route != null) {
+            mCurrentLevelText.setText(current + " "
+                    + getResources().getString(ROUTE_TITLES[route.mId]));
         }
     }
 
@@ -468,6 +515,7 @@ public class ActivityMusic extends AppCompatActivity {
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.toolbar_menu, menu);
         mToolbarSwitch = (Switch) menu.findItem(R.id.toolbar_switch).getActionView().findViewById(R.id.toolbar_switch_button);
+        mToolbarSwitch.setEnabled(mEffectsLoaded);
         mToolbarSwitch.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
@@ -505,6 +553,16 @@ public class ActivityMusic extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
+        if (mEffectsLoaded) {
+            resumeEffects();
+        }
+    }
+
+    /**
+     * Starts the SystemService if needed and updates the UI to the current scope.
+     */
+    private void resumeEffects() {
         if (mVirtualizerSupported || mBassBoostSupported || mEqualizerSupported
                 || mPresetReverbSupported || mStereoWideSupported) {
 
@@ -515,9 +573,6 @@ public class ActivityMusic extends AppCompatActivity {
                 }
             }
             mCurrentLevel = ControlPanelEffect.getCurrentPrevLevel(this);
-            mIsHeadsetOn = mCurrentLevel.equals(ControlPanelEffect.HEADSET_PREF_SCOPE);
-            mIsSpeakerOn = mCurrentLevel.equals(ControlPanelEffect.SPEAKER_PREF_SCOPE);
-            mIsBluetoothOn = mCurrentLevel.equals(ControlPanelEffect.BLUETOOTH_PREF_SCOPE);
 
             updateUI();
             updateTitle();
@@ -537,6 +592,7 @@ public class ActivityMusic extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
         try {
             unregisterReceiver(mPrefLevelChanged);
         } catch (Exception e) {
@@ -704,7 +760,7 @@ public class ActivityMusic extends AppCompatActivity {
      * Updates UI (checkbox, seekbars, enabled states) according to the current stored preferences.
      */
     private void updateUI() {
-        if (mToolbarSwitch == null) {
+        if (mToolbarSwitch == null || !mEffectsLoaded) {
             return;
         }
         final boolean isEnabled = ControlPanelEffect.getParameterBoolean(mContext, mCurrentLevel,
@@ -827,6 +883,7 @@ public class ActivityMusic extends AppCompatActivity {
 
             @Override
             public void onStopTrackingTouch(final Visualizer v) {
+                ControlPanelEffect.flushPendingUpdates();
             }
         };
 
@@ -939,17 +996,17 @@ public class ActivityMusic extends AppCompatActivity {
      *            PR preset id.
      */
     private void presetReverbSetPreset(final int preset) {
-        ControlPanelEffect.setParameterInt(mContext, mCurrentLevel,
-                ControlPanelEffect.Key.pr_current_preset, preset);
-        ControlPanelEffect.setParameterBoolean(mContext, mCurrentLevel,
-                ControlPanelEffect.Key.pr_enabled, preset != 0);
+        ControlPanelEffect.edit(mContext, mCurrentLevel)
+                .putInt(ControlPanelEffect.Key.pr_current_preset, preset)
+                .putBoolean(ControlPanelEffect.Key.pr_enabled, preset != 0)
+                .apply();
     }
 
     private void stereoWideSetStrength(final int strength) {
-        ControlPanelEffect.setParameterInt(mContext, mCurrentLevel,
-                ControlPanelEffect.Key.sw_strength, strength);
-        ControlPanelEffect.setParameterBoolean(mContext, mCurrentLevel,
-                ControlPanelEffect.Key.sw_enabled, strength != 0);
+        ControlPanelEffect.edit(mContext, mCurrentLevel)
+                .putInt(ControlPanelEffect.Key.sw_strength, strength)
+                .putBoolean(ControlPanelEffect.Key.sw_enabled, strength != 0)
+                .apply();
     }
 
     /**
@@ -973,20 +1030,4 @@ public class ActivityMusic extends AppCompatActivity {
         }
         return false;
     }
-
-    private static boolean isVirtualizerTransauralSupported() {
-        Virtualizer virt = null;
-        boolean transauralSupported = false;
-        try {
-            virt = new Virtualizer(0, android.media.AudioSystem.newAudioSessionId());
-            transauralSupported = virt.canVirtualize(AudioFormat.CHANNEL_OUT_STEREO,
-                    Virtualizer.VIRTUALIZATION_MODE_TRANSAURAL);
-        } catch (Exception e) {
-        } finally {
-            if (virt != null) {
-                virt.release();
-            }
-        }
-        return transauralSupported;
-    }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+import android.media.AudioFormat;
+import android.media.MediaPlayer;
+import android.media.audiofx.AudioEffect;
+import android.media.audiofx.AudioEffect.Descriptor;
+import android.media.audiofx.BassBoost;
+import android.media.audiofx.Equalizer;
+import android.media.audiofx.PresetReverb;
+import android.media.audiofx.StereoWide;
+import android.media.audiofx.Virtualizer;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.EnumSet;
+
+/**
+ * Effect backend on top of the framework effects, every call is a binder transaction to the
+ * audio server.
+ */
+final class AudioFxEffectBackend implements EffectBackend {
+
+    private final static String TAG = "MusicFXAudioFxEffectBackend";
+
+    /** MediaPlayers owning the probe sessions, guarded by the backend. */
+    private final SparseArray<MediaPlayer> mProbePlayers = new SparseArray<MediaPlayer>();
+
+    @Override
+    public EnumSet<Type> queryEffects() {
+        final EnumSet<Type> types = EnumSet.noneOf(Type.class);
+        final Descriptor[] effects = AudioEffect.queryEffects();
+        if (effects == null) {
+            return types;
+        }
+        for (final Descriptor effect : effects) {
+            Log.d(TAG, effect.name.toString() + ", type: " + effect.type.toString());
+            if (effect.type.equals(AudioEffect.EFFECT_TYPE_VIRTUALIZER)) {
+                types.add(Type.VIRTUALIZER);
+            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_BASS_BOOST)) {
+                types.add(Type.BASS_BOOST);
+            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_EQUALIZER)) {
+                types.add(Type.EQUALIZER);
+            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_PRESET_REVERB)) {
+                types.add(Type.PRESET_REVERB);
+            } else if (effect.type.equals(AudioEffect.EFFECT_TYPE_STEREOWIDE)) {
+                types.add(Type.STEREO_WIDE);
+            }
+        }
+        return types;
+    }
+
+    @Override
+    public EffectHandle create(final Type type, final int priority, final int audioSession) {
+        final AudioEffect effect;
+        switch (type) {
+        case VIRTUALIZER:
+            effect = new Virtualizer(priority, audioSession);
+            break;
+        case BASS_BOOST:
+            effect = new BassBoost(priority, audioSession);
+            break;
+        case EQUALIZER:
+            effect = new Equalizer(priority, audioSession);
+            break;
+        case PRESET_REVERB:
+            effect = new PresetReverb(priority, audioSession);
+            break;
+        case STEREO_WIDE:
+            effect = new StereoWide(priority, audioSession);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown effect type: " + type);
+        }
+        return new Handle(type, audioSession, effect);
+    }
+
+    @Override
+    public int openProbeSession() {
+        // A "dummy" audio session created by MediaPlayer
+        final MediaPlayer mediaPlayer = new MediaPlayer();
+        final int audioSession = mediaPlayer.getAudioSessionId();
+        synchronized (mProbePlayers) {
+            mProbePlayers.put(audioSession, mediaPlayer);
+        }
+        return audioSession;
+    }
+
+    @Override
+    public void closeProbeSession(final int audioSession) {
+        final MediaPlayer mediaPlayer;
+        synchronized (mProbePlayers) {
+            mediaPlayer = mProbePlayers.get(audioSession);
+            mProbePlayers.remove(audioSession);
+        }
+        if (mediaPlayer != null) {
+            mediaPlayer.release();
+        }
+    }
+
+    private static final class Handle implements EffectHandle {
+        private final Type mType;
+        private final int mAudioSession;
+        private final AudioEffect mEffect;
+
+        Handle(final Type type, final int audioSession, final AudioEffect effect) {
+            mType = type;
+            mAudioSession = audioSession;
+            mEffect = effect;
+        }
+
+        @Override
+        public Type getType() {
+            return mType;
+        }
+
+        @Override
+        public int getAudioSession() {
+            return mAudioSession;
+        }
+
+        @Override
+        public void setEnabled(final boolean enabled) {
+            mEffect.setEnabled(enabled);
+        }
+
+        @Override
+        public void setStrength(final short strength) {
+            switch (mType) {
+            case VIRTUALIZER:
+                ((Virtualizer) mEffect).setStrength(strength);
+                break;
+            case BASS_BOOST:
+                ((BassBoost) mEffect).setStrength(strength);
+                break;
+            case STEREO_WIDE:
+                ((StereoWide) mEffect).setStrength(strength);
+                break;
+            default:
+                throw unsupported("setStrength");
+            }
+        }
+
+        @Override
+        public void setPreset(final short preset) {
+            presetReverb("setPreset").setPreset(preset);
+        }
+
+        @Override
+        public void setBandLevel(final short band, final short level) {
+            equalizer("setBandLevel").setBandLevel(band, level);
+        }
+
+        @Override
+        public void setBandLevels(final short[] levels) {
+            final Equalizer.Settings settings = new Equalizer.Settings();
+            // no preset, use the band levels
+            settings.curPreset = -1;
+            settings.numBands = (short) levels.length;
+            settings.bandLevels = levels;
+            equalizer("setBandLevels").setProperties(settings);
+        }
+
+        @Override
+        public short[] getBandLevelRange() {
+            return equalizer("getBandLevelRange").getBandLevelRange();
+        }
+
+        @Override
+        public short getNumberOfBands() {
+            return equalizer("getNumberOfBands").getNumberOfBands();
+        }
+
+        @Override
+        public int getCenterFreq(final short band) {
+            return equalizer("getCenterFreq").getCenterFreq(band);
+        }
+
+        @Override
+        public short getNumberOfPresets() {
+            return equalizer("getNumberOfPresets").getNumberOfPresets();
+        }
+
+        @Override
+        public String getPresetName(final short preset) {
+            return equalizer("getPresetName").getPresetName(preset);
+        }
+
+        @Override
+        public void usePreset(final short preset) {
+            equalizer("usePreset").usePreset(preset);
+        }
+
+        @Override
+        public short getBandLevel(final short band) {
+            return equalizer("getBandLevel").getBandLevel(band);
+        }
+
+        @Override
+        public boolean getStrengthSupported() {
+            return virtualizer("getStrengthSupported").getStrengthSupported();
+        }
+
+        @Override
+        public boolean canVirtualizeTransaural() {
+            return virtualizer("canVirtualizeTransaural").canVirtualize(
+                    AudioFormat.CHANNEL_OUT_STEREO, Virtualizer.VIRTUALIZATION_MODE_TRANSAURAL);
+        }
+
+        @Override
+        public void release() {
+            mEffect.release();
+        }
+
+        private Equalizer equalizer(final String method) {
+            if (mType != Type.EQUALIZER) {
+                throw unsupported(method);
+            }
+            return (Equalizer) mEffect;
+        }
+
+        private Virtualizer virtualizer(final String method) {
+            if (mType != Type.VIRTUALIZER) {
+                throw unsupported(method);
+            }
+            return (Virtualizer) mEffect;
+        }
+
+        private PresetReverb presetReverb(final String method) {
+            if (mType != Type.PRESET_REVERB) {
+                throw unsupported(method);
+            }
+            return (PresetReverb) mEffect;
+        }
+
+        private UnsupportedOperationException unsupported(final String method) {
+            return new UnsupportedOperationException(method + " not supported by " + mType);
+        }
+    }
+}
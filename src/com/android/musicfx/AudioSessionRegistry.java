@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.util.SparseArray;
+
+import com.android.musicfx.ControlPanelEffect.EffectSet;
+
+import java.io.PrintWriter;
+
+/**
+ * Thread safe registry of the effect sets of all open audio sessions.
+ *
+ * Sessions are keyed by their int id without boxing. Open and close are serialized on the
+ * registry so an effect set is created at most once per open session and handed out at most
+ * once on close. Readers iterate over an immutable snapshot array which is only rebuilt when
+ * a session is opened or closed, so iterating never allocates.
+ *
+ * Closed sessions can be parked for a grace period instead of being handed out for release.
+ * If the same session id is opened again meanwhile its parked effect set is reattached.
+ */
+final class AudioSessionRegistry {
+
+    private static final EffectSet[] EMPTY = new EffectSet[0];
+
+    private final SparseArray<EffectSet> mSessions = new SparseArray<EffectSet>();
+    private volatile EffectSet[] mSnapshot = EMPTY;
+    /** Closed effect sets waiting for their grace period to end. */
+    private final SparseArray<EffectSet> mParked = new SparseArray<EffectSet>();
+    private long mGracePeriod;
+    private long mParkedHits;
+    private long mParkedMisses;
+
+    /**
+     * Creates and registers the effect set for the given session, or reattaches the parked one
+     * if the session was closed within the grace period.
+     *
+     * @param sessionId
+     * @param capabilities
+     * @param backend
+     * @return the effect set or null if the session is already open
+     */
+    synchronized EffectSet open(final int sessionId, final EffectCapabilities capabilities,
+            final EffectBackend backend) {
+        if (mSessions.indexOfKey(sessionId) >= 0) {
+            return null;
+        }
+        final int parked = mParked.indexOfKey(sessionId);
+        final EffectSet effectSet;
+        if (parked >= 0) {
+            effectSet = mParked.valueAt(parked);
+            mParked.removeAt(parked);
+            mParkedHits++;
+        } else {
+            effectSet = new EffectSet(sessionId, capabilities, backend);
+            if (mGracePeriod > 0) {
+                mParkedMisses++;
+            }
+        }
+        mSessions.put(sessionId, effectSet);
+        rebuildSnapshot();
+        return effectSet;
+    }
+
+    /**
+     * Unregisters the effect set of the given session. With a grace period the effect set is
+     * parked until the given deadline. Otherwise the caller becomes the sole owner of the
+     * returned effect set and is responsible for releasing it.
+     *
+     * @param sessionId
+     * @param now
+     *            current uptime in ms
+     * @return the effect set to release or null if it was parked or the session was not open
+     */
+    synchronized EffectSet close(final int sessionId, final long now) {
+        final int index = mSessions.indexOfKey(sessionId);
+        if (index < 0) {
+            return null;
+        }
+        final EffectSet effectSet = mSessions.valueAt(index);
+        mSessions.removeAt(index);
+        rebuildSnapshot();
+        if (mGracePeriod > 0) {
+            effectSet.mParkedUntil = now + mGracePeriod;
+            mParked.put(sessionId, effectSet);
+            return null;
+        }
+        return effectSet;
+    }
+
+    /**
+     * Unparks all effect sets whose grace period ended at the given time. The caller is
+     * responsible for releasing them.
+     *
+     * @param now
+     *            current uptime in ms, Long.MAX_VALUE to unpark all
+     * @return the expired effect sets
+     */
+    synchronized EffectSet[] expire(final long now) {
+        int count = 0;
+        for (int i = 0; i < mParked.size(); i++) {
+            if (mParked.valueAt(i).mParkedUntil <= now) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        final EffectSet[] expired = new EffectSet[count];
+        count = 0;
+        for (int i = mParked.size() - 1; i >= 0; i--) {
+            if (mParked.valueAt(i).mParkedUntil <= now) {
+                expired[count++] = mParked.valueAt(i);
+                mParked.removeAt(i);
+            }
+        }
+        return expired;
+    }
+
+    synchronized void setGracePeriod(final long gracePeriod) {
+        mGracePeriod = gracePeriod;
+    }
+
+    synchronized long getGracePeriod() {
+        return mGracePeriod;
+    }
+
+    synchronized int getParkedCount() {
+        return mParked.size();
+    }
+
+    /**
+     * Returns the number of opens that reattached a parked effect set.
+     */
+    synchronized long getParkedHits() {
+        return mParkedHits;
+    }
+
+    /**
+     * Returns the number of opens that had to create a new effect set while parking was
+     * enabled.
+     */
+    synchronized long getParkedMisses() {
+        return mParkedMisses;
+    }
+
+    synchronized EffectSet get(final int sessionId) {
+        return mSessions.get(sessionId);
+    }
+
+    /**
+     * Returns the effect sets of all open sessions. The returned array is shared and must not
+     * be modified.
+     */
+    EffectSet[] snapshot() {
+        return mSnapshot;
+    }
+
+    int size() {
+        return mSnapshot.length;
+    }
+
+    /**
+     * Prints the open and parked sessions with the values last applied to their effects.
+     */
+    synchronized void dump(final PrintWriter pw, final String prefix) {
+        pw.println(prefix + "open=" + mSessions.size() + " parked=" + mParked.size()
+                + " gracePeriod=" + mGracePeriod + "ms parkedHits=" + mParkedHits
+                + " parkedMisses=" + mParkedMisses);
+        for (int i = 0; i < mSessions.size(); i++) {
+            mSessions.valueAt(i).dump(pw, prefix + "  ");
+        }
+        for (int i = 0; i < mParked.size(); i++) {
+            pw.print(prefix + "  parked until " + mParked.valueAt(i).mParkedUntil + ": ");
+            mParked.valueAt(i).dump(pw, "");
+        }
+    }
+
+    private void rebuildSnapshot() {
+        final int size = mSessions.size();
+        final EffectSet[] snapshot = size == 0 ? EMPTY : new EffectSet[size];
+        for (int i = 0; i < size; i++) {
+            snapshot[i] = mSessions.valueAt(i);
+        }
+        mSnapshot = snapshot;
+    }
+}
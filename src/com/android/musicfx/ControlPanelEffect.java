@@ -17,21 +17,31 @@
 package com.android.musicfx;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.media.MediaPlayer;
-import android.media.audiofx.AudioEffect;
-import android.media.audiofx.BassBoost;
-import android.media.audiofx.Equalizer;
-import android.media.audiofx.PresetReverb;
-import android.media.audiofx.StereoWide;
-import android.media.audiofx.Virtualizer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.Log;
 
+import com.android.musicfx.EffectBackend.Type;
+import com.android.musicfx.RouteTable.Route;
+
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The Common class defines constants to be used by the control panels.
@@ -43,14 +53,15 @@ public class ControlPanelEffect {
     public static final String SPEAKER_PREF_SCOPE = "com.android.musicfx.speaker";
     public static final String HEADSET_PREF_SCOPE = "com.android.musicfx.headset";
     public static final String BLUETOOTH_PREF_SCOPE = "com.android.musicfx.bluetooth";
+    public static final String USB_PREF_SCOPE = "com.android.musicfx.usb";
+    public static final String HDMI_PREF_SCOPE = "com.android.musicfx.hdmi";
+    public static final String DOCK_PREF_SCOPE = "com.android.musicfx.dock";
+    public static final String LINE_PREF_SCOPE = "com.android.musicfx.line";
+    /** Prefix of the scopes of individual Bluetooth devices, followed by the address. */
+    static final String BLUETOOTH_DEVICE_SCOPE_PREFIX = BLUETOOTH_PREF_SCOPE + ".";
     public static final String PREF_SCOPE_CHANGED = "com.android.musicfx.PREF_SCOPE_CHANGED";
 
-    private static String[] ALL_PREF_SCOPES = new String[] {SPEAKER_PREF_SCOPE, HEADSET_PREF_SCOPE, BLUETOOTH_PREF_SCOPE};
-    /**
-     * Audio session priority
-     */
-    private static final int PRIORITY = 0;
-
+    private static String[] ALL_PREF_SCOPES = RouteTable.getScopes();
     /**
      * The control mode specifies if control panel updates effects and preferences or only
      * preferences.
@@ -75,43 +86,428 @@ public class ControlPanelEffect {
         eq_num_presets, eq_preset_name, eq_preset_user_band_level,
         eq_preset_user_band_level_default, eq_current_preset,
         pr_enabled, pr_current_preset, sw_enabled, sw_strength,
-        bluetooth, headset
+        bluetooth, headset, init_stamp, global_session, output_route
     }
 
+    /**
+     * Effects of one audio session. An effect is only created while it is enabled in the active
+     * scope and released as soon as it gets disabled, so sessions without enabled effects hold
+     * no native effect instances.
+     */
     protected static class EffectSet {
 
-        final Equalizer mEqualizer;
-        final BassBoost mBassBoost;
-        final Virtualizer mVirtualizer;
-        final PresetReverb mPresetReverb;
-        StereoWide mStereoWide;
+        /** Number of native effect instances held by all effect sets. */
+        private static final AtomicInteger mLiveEffects = new AtomicInteger();
+        /** Number of parameter calls into the native effects, each one binder transaction. */
+        private static final AtomicLong mEffectCalls = new AtomicLong();
+        /** Number of effect set updates aborted by an exception of an effect. */
+        private static final AtomicLong mEffectFailures = new AtomicLong();
+        /**
+         * Cleared if the Equalizer rejects setting all band levels through its properties, set
+         * again once the EQ properties are probed.
+         */
+        private static volatile boolean mEqPropertiesSupported = true;
+
+        final EffectCapabilities mCapabilities;
+        final EffectBackend mBackend;
+        EffectHandle mEqualizer;
+        EffectHandle mBassBoost;
+        EffectHandle mVirtualizer;
+        EffectHandle mPresetReverb;
+        EffectHandle mStereoWide;
         int mAudioSession;
+        /** Set once the effects are released, guarded by the EffectSet itself. */
+        boolean mReleased;
+        /** Uptime the effect set is released at while parked, guarded by the registry. */
+        long mParkedUntil;
 
-        protected EffectSet(int sessionId) {
+        /**
+         * Last values applied to the effects, UNKNOWN until the first successful call. Used to
+         * skip native calls for parameters that did not change. Guarded by the EffectSet.
+         */
+        private static final int UNKNOWN = Integer.MIN_VALUE;
+        private int mVirtStrength = UNKNOWN;
+        private int mVirtEnabled = UNKNOWN;
+        private int mBbStrength = UNKNOWN;
+        private int mBbEnabled = UNKNOWN;
+        private int mPrPreset = UNKNOWN;
+        private int mPrEnabled = UNKNOWN;
+        private int[] mEqBandLevels = new int[0];
+        private int mEqEnabled = UNKNOWN;
+        private int mSwStrength = UNKNOWN;
+        private int mSwEnabled = UNKNOWN;
+
+        protected EffectSet(int sessionId, EffectCapabilities capabilities,
+                EffectBackend backend) {
             mAudioSession = sessionId;
-            mEqualizer = new Equalizer(0, sessionId);
-            mBassBoost = new BassBoost(0, sessionId);
-            mVirtualizer = new Virtualizer(0, sessionId);
-            mPresetReverb = new PresetReverb(0, sessionId);
-            try {
-                mStereoWide = new StereoWide(0, sessionId);
-            } catch(java.lang.IllegalArgumentException e) {
+            mCapabilities = capabilities;
+            mBackend = backend;
+        }
+
+        protected synchronized void release() {
+            if (mReleased) {
+                return;
+            }
+            mReleased = true;
+            releaseEffects();
+        }
+
+        /**
+         * Releases the native effects but keeps the set usable, effects are created again by
+         * the next update.
+         */
+        protected synchronized void releaseEffects() {
+            acquireEqualizer(false);
+            acquireBassBoost(false);
+            acquireVirtualizer(false);
+            acquirePresetReverb(false);
+            acquireStereoWide(false);
+        }
+
+        /**
+         * Returns the number of native effect instances currently held by all sessions.
+         */
+        static int getLiveEffectCount() {
+            return mLiveEffects.get();
+        }
+
+        /**
+         * Returns the number of parameter calls made into native effects by all sessions.
+         */
+        static long getEffectCallCount() {
+            return mEffectCalls.get();
+        }
+
+        static long getEffectFailureCount() {
+            return mEffectFailures.get();
+        }
+
+        private static void releaseEffect(final EffectHandle effect) {
+            checkNotMainThread("EffectHandle.release");
+            effect.release();
+            mLiveEffects.decrementAndGet();
+        }
+
+        /**
+         * Creates the virtualizer if needed and supported, or releases it if not needed.
+         *
+         * @return true if the virtualizer exists after the call
+         */
+        boolean acquireVirtualizer(final boolean needed) {
+            if (needed && mVirtualizer == null && mCapabilities.mVirtualizerSupported) {
+                checkNotMainThread("create Virtualizer");
+                try {
+                    mVirtualizer = mBackend.create(Type.VIRTUALIZER, 0, mAudioSession);
+                    mLiveEffects.incrementAndGet();
+                    mVirtStrength = UNKNOWN;
+                    mVirtEnabled = UNKNOWN;
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Virtualizer: " + mAudioSession + "; " + e);
+                }
+            } else if (!needed && mVirtualizer != null) {
+                releaseEffect(mVirtualizer);
+                mVirtualizer = null;
+            }
+            return mVirtualizer != null;
+        }
+
+        boolean acquireBassBoost(final boolean needed) {
+            if (needed && mBassBoost == null && mCapabilities.mBassBoostSupported) {
+                checkNotMainThread("create BassBoost");
+                try {
+                    mBassBoost = mBackend.create(Type.BASS_BOOST, 0, mAudioSession);
+                    mLiveEffects.incrementAndGet();
+                    mBbStrength = UNKNOWN;
+                    mBbEnabled = UNKNOWN;
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "BassBoost: " + mAudioSession + "; " + e);
+                }
+            } else if (!needed && mBassBoost != null) {
+                releaseEffect(mBassBoost);
+                mBassBoost = null;
+            }
+            return mBassBoost != null;
+        }
+
+        boolean acquirePresetReverb(final boolean needed) {
+            if (needed && mPresetReverb == null && mCapabilities.mPresetReverbSupported) {
+                checkNotMainThread("create PresetReverb");
+                try {
+                    mPresetReverb = mBackend.create(Type.PRESET_REVERB, 0, mAudioSession);
+                    mLiveEffects.incrementAndGet();
+                    mPrPreset = UNKNOWN;
+                    mPrEnabled = UNKNOWN;
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "PresetReverb: " + mAudioSession + "; " + e);
+                }
+            } else if (!needed && mPresetReverb != null) {
+                releaseEffect(mPresetReverb);
+                mPresetReverb = null;
+            }
+            return mPresetReverb != null;
+        }
+
+        boolean acquireEqualizer(final boolean needed) {
+            if (needed && mEqualizer == null && mCapabilities.mEqualizerSupported) {
+                checkNotMainThread("create Equalizer");
+                try {
+                    mEqualizer = mBackend.create(Type.EQUALIZER, 0, mAudioSession);
+                    mLiveEffects.incrementAndGet();
+                    Arrays.fill(mEqBandLevels, UNKNOWN);
+                    mEqEnabled = UNKNOWN;
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Equalizer: " + mAudioSession + "; " + e);
+                }
+            } else if (!needed && mEqualizer != null) {
+                releaseEffect(mEqualizer);
+                mEqualizer = null;
+            }
+            return mEqualizer != null;
+        }
+
+        boolean acquireStereoWide(final boolean needed) {
+            if (needed && mStereoWide == null && mCapabilities.mStereoWideSupported) {
+                checkNotMainThread("create StereoWide");
+                try {
+                    mStereoWide = mBackend.create(Type.STEREO_WIDE, 0, mAudioSession);
+                    mLiveEffects.incrementAndGet();
+                    mSwStrength = UNKNOWN;
+                    mSwEnabled = UNKNOWN;
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "StereoWide: " + mAudioSession + "; " + e);
+                }
+            } else if (!needed && mStereoWide != null) {
+                releaseEffect(mStereoWide);
                 mStereoWide = null;
             }
+            return mStereoWide != null;
+        }
+
+        void setVirtualizerStrength(final short strength) {
+            if (mVirtStrength != strength) {
+                mVirtualizer.setStrength(strength);
+                mEffectCalls.incrementAndGet();
+                mVirtStrength = strength;
+            }
+        }
+
+        void setVirtualizerEnabled(final boolean enabled) {
+            if (mVirtEnabled != toInt(enabled)) {
+                mVirtualizer.setEnabled(enabled);
+                mEffectCalls.incrementAndGet();
+                mVirtEnabled = toInt(enabled);
+            }
+        }
+
+        void setBassBoostStrength(final short strength) {
+            if (mBbStrength != strength) {
+                mBassBoost.setStrength(strength);
+                mEffectCalls.incrementAndGet();
+                mBbStrength = strength;
+            }
+        }
+
+        void setBassBoostEnabled(final boolean enabled) {
+            if (mBbEnabled != toInt(enabled)) {
+                mBassBoost.setEnabled(enabled);
+                mEffectCalls.incrementAndGet();
+                mBbEnabled = toInt(enabled);
+            }
+        }
+
+        void setPresetReverbPreset(final short preset) {
+            if (mPrPreset != preset) {
+                mPresetReverb.setPreset(preset);
+                mEffectCalls.incrementAndGet();
+                mPrPreset = preset;
+            }
+        }
+
+        void setPresetReverbEnabled(final boolean enabled) {
+            if (mPrEnabled != toInt(enabled)) {
+                mPresetReverb.setEnabled(enabled);
+                mEffectCalls.incrementAndGet();
+                mPrEnabled = toInt(enabled);
+            }
+        }
+
+        /**
+         * Sets the levels of all bands. If more than one band changed the levels are set in one
+         * call, falling back to one call per band if the effect does not accept that.
+         */
+        void setEqualizerBandLevels(final short[] levels) {
+            if (levels.length > mEqBandLevels.length) {
+                final int oldLength = mEqBandLevels.length;
+                mEqBandLevels = Arrays.copyOf(mEqBandLevels, levels.length);
+                Arrays.fill(mEqBandLevels, oldLength, levels.length, UNKNOWN);
+            }
+            int changed = 0;
+            for (int band = 0; band < levels.length; band++) {
+                if (mEqBandLevels[band] != levels[band]) {
+                    changed++;
+                }
+            }
+            if (changed > 1 && mEqPropertiesSupported) {
+                try {
+                    mEqualizer.setBandLevels(levels);
+                    mEffectCalls.incrementAndGet();
+                    for (int band = 0; band < levels.length; band++) {
+                        mEqBandLevels[band] = levels[band];
+                    }
+                    return;
+                } catch (final IllegalArgumentException e) {
+                    // band count or format not accepted. The band count comes from the config,
+                    // e.g. the default eq_num_bands after a failed probe, so init() allows the
+                    // properties again once the EQ properties are probed.
+                    // UnsupportedOperationException and IllegalStateException only concern
+                    // this effect, e.g. after a loss of control, and fail the update.
+                    Log.w(TAG, "setEqualizerBandLevels: properties not supported; " + e);
+                    mEqPropertiesSupported = false;
+                }
+            }
+            for (short band = 0; band < levels.length; band++) {
+                if (mEqBandLevels[band] != levels[band]) {
+                    mEqualizer.setBandLevel(band, levels[band]);
+                    mEffectCalls.incrementAndGet();
+                    mEqBandLevels[band] = levels[band];
+                }
+            }
+        }
+
+        void setEqualizerEnabled(final boolean enabled) {
+            if (mEqEnabled != toInt(enabled)) {
+                mEqualizer.setEnabled(enabled);
+                mEffectCalls.incrementAndGet();
+                mEqEnabled = toInt(enabled);
+            }
+        }
+
+        void setStereoWideStrength(final short strength) {
+            if (mSwStrength != strength) {
+                mStereoWide.setStrength(strength);
+                mEffectCalls.incrementAndGet();
+                mSwStrength = strength;
+            }
+        }
+
+        void setStereoWideEnabled(final boolean enabled) {
+            if (mSwEnabled != toInt(enabled)) {
+                mStereoWide.setEnabled(enabled);
+                mEffectCalls.incrementAndGet();
+                mSwEnabled = toInt(enabled);
+            }
         }
 
-        protected void release() {
-            mEqualizer.release();
-            mBassBoost.release();
-            mVirtualizer.release();
-            mPresetReverb.release();
+        /**
+         * Prints the values last applied to the effects. Does not lock the set and never calls
+         * into the effects, so the values may be slightly stale.
+         */
+        void dump(final PrintWriter pw, final String prefix) {
+            pw.print(prefix);
+            pw.print("session " + mAudioSession + (mReleased ? " (released)" : "") + ":");
+            if (mVirtualizer != null) {
+                pw.print(" virt=" + toString(mVirtEnabled) + "/" + toString(mVirtStrength));
+            }
+            if (mBassBoost != null) {
+                pw.print(" bb=" + toString(mBbEnabled) + "/" + toString(mBbStrength));
+            }
+            if (mPresetReverb != null) {
+                pw.print(" pr=" + toString(mPrEnabled) + "/" + toString(mPrPreset));
+            }
+            if (mEqualizer != null) {
+                pw.print(" eq=" + toString(mEqEnabled) + "/[");
+                final int[] levels = mEqBandLevels;
+                for (int band = 0; band < levels.length; band++) {
+                    pw.print((band > 0 ? "," : "") + toString(levels[band]));
+                }
+                pw.print("]");
+            }
             if (mStereoWide != null) {
-                mStereoWide.release();
+                pw.print(" sw=" + toString(mSwEnabled) + "/" + toString(mSwStrength));
             }
+            pw.println();
+        }
+
+        private static String toString(final int applied) {
+            return applied == UNKNOWN ? "?" : Integer.toString(applied);
+        }
+
+        private static int toInt(final boolean value) {
+            return value ? 1 : 0;
+        }
+    }
+
+    /**
+     * Effect state of one scope snapshot compiled into a flat list of commands, replayed as is
+     * on every effect set. Each command takes three entries: the effect, 1 if it is enabled
+     * and its value. The equalizer value is unused, its band levels are resolved from the
+     * preset or user levels at compile time.
+     */
+    static final class EffectCommands {
+        static final short VIRTUALIZER = 0;
+        static final short BASS_BOOST = 1;
+        static final short PRESET_REVERB = 2;
+        static final short EQUALIZER = 3;
+        static final short STEREO_WIDE = 4;
+        static final int COMMAND_SIZE = 3;
+
+        /** The snapshot the commands were compiled from. */
+        final EffectConfig mConfig;
+        final short[] mCommands;
+        final short[] mEqBandLevels;
+
+        EffectCommands(final EffectConfig config, final short[] commands,
+                final short[] eqBandLevels) {
+            mConfig = config;
+            mCommands = commands;
+            mEqBandLevels = eqBandLevels;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(mCommands) + " eq=" + Arrays.toString(mEqBandLevels);
         }
     }
 
-    protected static final Map<Integer, EffectSet> mAudioSessions = new HashMap<Integer, EffectSet>();
+    protected static final AudioSessionRegistry mAudioSessions = new AudioSessionRegistry();
+
+    /**
+     * Debounced route model of the running SystemService, null while the service is not
+     * running in which case the route is derived from the persisted routing parameters.
+     */
+    private static volatile RouteDebouncer mRouteDebouncer;
+
+    /** Backend creating the effects of new effect sets and probing the capabilities. */
+    private static volatile EffectBackend mEffectBackend = new AudioFxEffectBackend();
+
+    /**
+     * Current parameter snapshot per preference scope. Readers use the published snapshot
+     * without locking, writers derive a new snapshot under mConfigWriteLock and publish it
+     * before writing the changes through to the scope's ProfileStore record.
+     */
+    private static final ConcurrentHashMap<String, EffectConfig> mConfigs =
+            new ConcurrentHashMap<String, EffectConfig>();
+    private final static Object mConfigWriteLock = new Object();
+
+    /**
+     * Compiled commands per effect scope, recompiled whenever a new snapshot is published so
+     * that route changes and newly opened sessions only replay them.
+     */
+    private static final ConcurrentHashMap<String, EffectCommands> mCommands =
+            new ConcurrentHashMap<String, EffectCommands>();
+    private static PersistenceWriter mPersistenceWriter;
+
+    /**
+     * Number of Bluetooth device scopes kept in memory. Less recently used device scopes are
+     * dropped from mConfigs and mCommands and loaded from the ProfileStore again on next use.
+     */
+    private static final int HOT_DEVICE_SCOPES = 8;
+    /** Hot Bluetooth device scopes, least recently used first. Guarded by mConfigWriteLock. */
+    private static final LinkedHashMap<String, Boolean> mHotDeviceScopes =
+            new LinkedHashMap<String, Boolean>(HOT_DEVICE_SCOPES + 1, 0.75f, true);
+    private static final AtomicLong mDeviceScopeHits = new AtomicLong();
+    private static final AtomicLong mDeviceScopeLoads = new AtomicLong();
+    private static final AtomicLong mDeviceScopeEvictions = new AtomicLong();
 
     // Defaults
     private final static boolean GLOBAL_ENABLED_DEFAULT = false;
@@ -142,68 +538,378 @@ public class ControlPanelEffect {
     private static short mEQNumPresets = EQUALIZER_NUMBER_PRESETS_DEFAULT;
     private static short[][] mEQPresetOpenSLESBandLevel = EQUALIZER_PRESET_OPENSL_ES_BAND_LEVEL_DEFAULT;
     private static String[] mEQPresetNames;
+    private static boolean mVirtStrengthSupported;
     private static boolean mIsInitialized = false;
     private final static Object mEQInitLock = new Object();
 
+    /**
+     * Version of the values written by initEffectsPreferences. Part of the stamp stored in each
+     * scope, bump it whenever initEffectsPreferences writes different values.
+     */
+    private final static int PREFERENCES_SCHEMA_VERSION = 1;
+    private static volatile boolean mPreferencesInitialized = false;
+
     /**
      * Default int argument used in methods to see that the arg is a dummy. Used for method
      * overloading.
      */
     private final static int DUMMY_ARGUMENT = -1;
 
+    /**
+     * Default minimum interval between two DSP updates in ms.
+     */
+    static final long DSP_UPDATE_MIN_INTERVAL_DEFAULT = 30;
+
+    /**
+     * Default maximum time in ms a parameter change may wait before it is applied to the DSP.
+     */
+    static final long DSP_UPDATE_MAX_LATENCY_DEFAULT = 60;
+
+    /**
+     * Default time in ms a closed session's effects are kept for a reopen of the same session.
+     */
+    static final long SESSION_RELEASE_GRACE_PERIOD_DEFAULT = 1000;
+
+    /**
+     * If set, disk and native effect work on the main thread throws instead of stalling the UI
+     * or the service's receivers.
+     */
+    private final static boolean STRICT_THREADING = SystemProperties.getBoolean(
+            "debug.musicfx.strict_threading", false);
+
+    /**
+     * Serial thread all native effect work runs on: session open and close, DSP updates and
+     * the release of parked sessions.
+     */
+    private static final HandlerThread mControlThread = new HandlerThread("MusicFXControl");
+    static {
+        mControlThread.start();
+    }
+    private static final Handler mHandler = new Handler(mControlThread.getLooper());
+
+    /**
+     * Effect set attached to the global output mix (session 0) while the global session mode
+     * is active, in which case the effect sets of the open sessions hold no native effects.
+     * Only changed on the control thread.
+     */
+    private static volatile EffectSet mGlobalEffectSet;
+
+    /**
+     * Maximum number of threads applying a DSP update to the open sessions, including the
+     * control thread itself.
+     */
+    static final int DSP_UPDATE_PARALLELISM_MAX = 4;
+
+    /**
+     * Minimum number of open sessions for a DSP update to be spread over several threads.
+     */
+    private final static int PARALLEL_UPDATE_MIN_SESSIONS = 3;
+
+    private static volatile int mDspUpdateParallelism = Math.min(DSP_UPDATE_PARALLELISM_MAX,
+            Runtime.getRuntime().availableProcessors());
+
+    /** Workers helping the control thread, threads are only started when first needed. */
+    private static final ExecutorService mApplyExecutor = Executors.newFixedThreadPool(
+            DSP_UPDATE_PARALLELISM_MAX - 1, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "MusicFXApply-"
+                            + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Session lifecycle statistics
+    private static final AtomicLong mSessionOpens = new AtomicLong();
+    private static final AtomicLong mSessionReopens = new AtomicLong();
+    private static final AtomicLong mSessionCloses = new AtomicLong();
+    private static final AtomicLong mSessionFailures = new AtomicLong();
+    private static final LatencyHistogram mOpenLatency = new LatencyHistogram("open");
+    /** Capability lookup excluded, effect set creation or reattach of a parked one. */
+    private static final LatencyHistogram mOpenRegisterLatency =
+            new LatencyHistogram("open.register");
+    private static final LatencyHistogram mOpenReadLatency = new LatencyHistogram("open.read");
+    /** First update of the effect set, includes creating the enabled native effects. */
+    private static final LatencyHistogram mOpenApplyLatency =
+            new LatencyHistogram("open.apply");
+    private static final LatencyHistogram mCloseLatency = new LatencyHistogram("close");
+    /** From a routing change to the DSP update applying the now active scope. */
+    private static final LatencyHistogram mRouteChangeLatency = new LatencyHistogram("route");
+    /** System.nanoTime() of the last routing change not yet applied, 0 if none. */
+    private static final AtomicLong mRouteChangeTime = new AtomicLong();
+
+    /** Native effect calls made by the last DSP update, only written on the control thread. */
+    private static volatile long mLastDspUpdateEffectCalls;
+
+    private static final DspUpdateScheduler mDspUpdateScheduler = new DspUpdateScheduler(
+            mHandler);
+
+    static {
+        mAudioSessions.setGracePeriod(SESSION_RELEASE_GRACE_PERIOD_DEFAULT);
+    }
+
+    private static final Runnable mReleaseParkedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseSessions(mAudioSessions.expire(SystemClock.uptimeMillis()));
+        }
+    };
+
+    /**
+     * Returns the handler of the effect control thread.
+     */
+    static Handler getControlHandler() {
+        return mHandler;
+    }
+
+    static EffectBackend getEffectBackend() {
+        return mEffectBackend;
+    }
+
+    /**
+     * Replaces the effect backend, e.g. to run the session and DSP paths without the audio
+     * server. Must be called before the capabilities are first read and any session is
+     * opened, existing effect sets keep the backend they were created with.
+     *
+     * @param backend
+     */
+    static void setEffectBackend(final EffectBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        mEffectBackend = backend;
+    }
+
+    /**
+     * Throws if called on the main thread while strict threading is enabled.
+     *
+     * @param what
+     *            the work about to be done
+     */
+    static void checkNotMainThread(final String what) {
+        if (STRICT_THREADING && Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException(what + " on main thread");
+        }
+    }
+
     /**
      * Inits effects preferences for the given context in the control panel.
      *
      * @param context
      */
     public static void initEffectsPreferences(final Context context) {
-        for (String prefLevel : ALL_PREF_SCOPES) {
-        final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                Context.MODE_PRIVATE);
-
-        Log.d(TAG, "initEffectsPreferences");
+        if (mPreferencesInitialized) {
+            return;
+        }
         synchronized (mEQInitLock) {
+            if (mPreferencesInitialized) {
+                return;
+            }
+            Log.d(TAG, "initEffectsPreferences");
             init(context);
+            final int stamp = getPreferencesStamp();
+            for (String prefLevel : ALL_PREF_SCOPES) {
+                initScopePreferences(context, prefLevel, stamp);
+            }
+            // also with the default EQ properties of a failed probe, the scopes are stamped
+            // with them and written again by onCapabilitiesProbed once a retry succeeds
+            mPreferencesInitialized = true;
         }
+    }
+
+    /**
+     * Returns true once initEffectsPreferences has written the EQ properties, the parameters
+     * of all scopes are loaded then.
+     */
+    static boolean isEffectsPreferencesInitialized() {
+        return mPreferencesInitialized;
+    }
+
+    /**
+     * Writes the EQ properties to the given scope unless the scope is already stamped with the
+     * given stamp.
+     */
+    private static void initScopePreferences(final Context context, final String prefLevel,
+            final int stamp) {
         // init preferences
         try {
-            final SharedPreferences.Editor editor = prefs.edit();
-
-            editor.putInt(Key.eq_level_range.toString() + 0, mEQBandLevelRange[0]);
-            editor.putInt(Key.eq_level_range.toString() + 1, mEQBandLevelRange[1]);
-            editor.putInt(Key.eq_num_bands.toString(), mEQNumBands);
-            editor.putInt(Key.eq_num_presets.toString(), mEQNumPresets);
-            // Resetting the EQ arrays depending on the real # bands with defaults if
-            // band < default size else 0 by copying default arrays over new ones
-            final short[] eQPresetUserBandLevelDefault = Arrays.copyOf(
-                    EQUALIZER_PRESET_USER_BAND_LEVEL_DEFAULT, mEQNumBands);
-            // if no preset prefs set use CI EXTREME (= numPresets)
-            final short eQPreset = (short) prefs.getInt(Key.eq_current_preset.toString(),
-                    mEQNumPresets);
-            final short[] bandLevel = new short[mEQNumBands];
-            for (short band = 0; band < mEQNumBands; band++) {
-                if (eQPreset < mEQNumPresets) {
-                    // OpenSL ES effect presets
-                    bandLevel[band] = mEQPresetOpenSLESBandLevel[eQPreset][band];
-                } else {
-                    // User
-                    bandLevel[band] = (short) prefs.getInt(
-                            Key.eq_preset_user_band_level.toString() + band,
+            synchronized (mConfigWriteLock) {
+                final EffectConfig config = getConfig(context, prefLevel);
+                if (config.contains(Key.init_stamp)
+                        && config.getInt(Key.init_stamp, 0) == stamp) {
+                    return;
+                }
+                final EffectConfig.Builder builder = config.buildUpon();
+
+                builder.putInt(Key.eq_level_range, 0, mEQBandLevelRange[0]);
+                builder.putInt(Key.eq_level_range, 1, mEQBandLevelRange[1]);
+                builder.putInt(Key.eq_num_bands, mEQNumBands);
+                builder.putInt(Key.eq_num_presets, mEQNumPresets);
+                // Resetting the EQ arrays depending on the real # bands with defaults if
+                // band < default size else 0 by copying default arrays over new ones
+                final short[] eQPresetUserBandLevelDefault = Arrays.copyOf(
+                        EQUALIZER_PRESET_USER_BAND_LEVEL_DEFAULT, mEQNumBands);
+                // if no preset prefs set use CI EXTREME (= numPresets)
+                final short eQPreset = (short) config.getInt(Key.eq_current_preset,
+                        mEQNumPresets);
+                final short[] bandLevel = new short[mEQNumBands];
+                for (short band = 0; band < mEQNumBands; band++) {
+                    if (eQPreset < mEQNumPresets) {
+                        // OpenSL ES effect presets
+                        bandLevel[band] = mEQPresetOpenSLESBandLevel[eQPreset][band];
+                    } else {
+                        // User
+                        bandLevel[band] = (short) config.getInt(
+                                Key.eq_preset_user_band_level, band,
+                                eQPresetUserBandLevelDefault[band]);
+                    }
+                    builder.putInt(Key.eq_band_level, band, bandLevel[band]);
+                    builder.putInt(Key.eq_center_freq, band, mEQCenterFreq[band]);
+                    builder.putInt(Key.eq_preset_user_band_level_default, band,
                             eQPresetUserBandLevelDefault[band]);
                 }
-                editor.putInt(Key.eq_band_level.toString() + band, bandLevel[band]);
-                editor.putInt(Key.eq_center_freq.toString() + band, mEQCenterFreq[band]);
-                editor.putInt(Key.eq_preset_user_band_level_default.toString() + band,
-                        eQPresetUserBandLevelDefault[band]);
-            }
-            for (short preset = 0; preset < mEQNumPresets; preset++) {
-                editor.putString(Key.eq_preset_name.toString() + preset, mEQPresetNames[preset]);
+                for (short preset = 0; preset < mEQNumPresets; preset++) {
+                    builder.putString(Key.eq_preset_name, preset, mEQPresetNames[preset]);
+                }
+                builder.putBoolean(Key.virt_strength_supported, mVirtStrengthSupported);
+                builder.putInt(Key.init_stamp, stamp);
+                publishConfig(context, prefLevel, builder);
             }
-            editor.commit();
         } catch (final RuntimeException e) {
             Log.e(TAG, "initEffectsPreferences: processingEnabled: " + e);
         }
+    }
+
+    /**
+     * Returns a stamp identifying the schema version and the EQ properties written by
+     * initEffectsPreferences.
+     */
+    private static int getPreferencesStamp() {
+        int stamp = PREFERENCES_SCHEMA_VERSION;
+        stamp = 31 * stamp + mEQNumBands;
+        stamp = 31 * stamp + mEQNumPresets;
+        stamp = 31 * stamp + Arrays.hashCode(mEQBandLevelRange);
+        stamp = 31 * stamp + Arrays.hashCode(mEQCenterFreq);
+        stamp = 31 * stamp + Arrays.deepHashCode(mEQPresetOpenSLESBandLevel);
+        stamp = 31 * stamp + Arrays.hashCode(mEQPresetNames);
+        stamp = 31 * stamp + (mVirtStrengthSupported ? 1 : 0);
+        return stamp;
+    }
+
+    /**
+     * Returns the current parameter snapshot of the given scope, loading it from the
+     * ProfileStore on first use. Bluetooth device scopes are loaded through
+     * loadBluetoothDeviceScope, so they count against HOT_DEVICE_SCOPES.
+     *
+     * @param context
+     * @param prefLevel
+     * @return the snapshot, never null
+     */
+    static EffectConfig getConfig(final Context context, final String prefLevel) {
+        EffectConfig config = mConfigs.get(prefLevel);
+        if (config != null) {
+            return config;
+        }
+        if (prefLevel.startsWith(BLUETOOTH_DEVICE_SCOPE_PREFIX)) {
+            loadBluetoothDeviceScope(context, prefLevel);
+            config = mConfigs.get(prefLevel);
+            if (config != null) {
+                return config;
+            }
+            // evicted again by concurrent loads, read it without keeping it
+            return ProfileStore.getInstance(context).load(prefLevel);
+        }
+        return loadConfig(context, prefLevel);
+    }
+
+    /**
+     * Returns true if the snapshot of the given scope is in memory, i.e. getConfig does not
+     * read from the ProfileStore.
+     */
+    static boolean isConfigLoaded(final String prefLevel) {
+        return mConfigs.containsKey(prefLevel);
+    }
+
+    private static EffectConfig loadConfig(final Context context, final String prefLevel) {
+        EffectConfig config = ProfileStore.getInstance(context).load(prefLevel);
+        final EffectConfig raced = mConfigs.putIfAbsent(prefLevel, config);
+        if (raced != null) {
+            config = raced;
+        }
+        return config;
+    }
+
+    /**
+     * Publishes the snapshot of the given builder for the scope and queues the modified values
+     * for the scope's ProfileStore record. Must be called with mConfigWriteLock held.
+     */
+    private static void publishConfig(final Context context, final String prefLevel,
+            final EffectConfig.Builder builder) {
+        final EffectConfig config = builder.build();
+        mConfigs.put(prefLevel, config);
+        if (!GLOBAL_PREF_SCOPE.equals(prefLevel)) {
+            mCommands.put(prefLevel, compile(config, RouteTable.getEffectMask(prefLevel)));
+        }
+        getPersistenceWriter(context).enqueue(prefLevel, builder);
+    }
+
+    /**
+     * Returns the compiled commands of the scope's current snapshot.
+     *
+     * @param context
+     * @param prefLevel
+     * @return the commands, never null
+     */
+    static EffectCommands getCommands(final Context context, final String prefLevel) {
+        final EffectConfig config = getConfig(context, prefLevel);
+        EffectCommands commands = mCommands.get(prefLevel);
+        // a racing publish may have stored older commands, the next call compiles again
+        if (commands == null || commands.mConfig != config) {
+            commands = compile(config, RouteTable.getEffectMask(prefLevel));
+            mCommands.put(prefLevel, commands);
+        }
+        return commands;
+    }
+
+    private static synchronized PersistenceWriter getPersistenceWriter(final Context context) {
+        if (mPersistenceWriter == null) {
+            mPersistenceWriter = new PersistenceWriter(ProfileStore.getInstance(context));
         }
+        return mPersistenceWriter;
+    }
+
+    /**
+     * Blocks until all parameter changes made so far are written to storage.
+     *
+     * @param context
+     */
+    public static void flushPendingWrites(final Context context) {
+        getPersistenceWriter(context).flush();
+    }
+
+    /**
+     * Returns the number of parameter writes which were merged into a pending write of the
+     * same parameter before reaching storage.
+     *
+     * @param context
+     */
+    public static long getMergedWrites(final Context context) {
+        return getPersistenceWriter(context).getMergedCount();
+    }
+
+    /**
+     * Starts a batch of parameter changes for the given scope. The changes are published,
+     * persisted and applied to the DSP together on {@link Editor#apply()}.
+     *
+     * @param context
+     * @param prefLevel
+     * @return the editor
+     */
+    public static Editor edit(final Context context, final String prefLevel) {
+        return new Editor(context, prefLevel);
     }
 
     /**
@@ -214,26 +920,7 @@ public class ControlPanelEffect {
      * @param value
      */
     public static void setParameterBoolean(final Context context, final String prefLevel, final Key key, final boolean value) {
-        try {
-            final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                    Context.MODE_PRIVATE);
-            final ControlMode controlMode = getControlMode();
-            final SharedPreferences.Editor editor = prefs.edit();
-            editor.putBoolean(key.toString(), value);
-            editor.commit();
-
-            if (controlMode == ControlMode.CONTROL_EFFECTS) {
-                String newPrefLevel = prefLevel;
-                // if current active level has changed make sure to updateDsp for the
-                // now active level
-                if (key.equals(Key.bluetooth) || key.equals(Key.headset)) {
-                    newPrefLevel = getCurrentPrevLevel(context);
-                }
-                updateDsp(context, newPrefLevel);
-            }
-        } catch (final RuntimeException e) {
-            Log.e(TAG, "setParameterBoolean: " + key + "; " + value + "; " + e);
-        }
+        edit(context, prefLevel).putBoolean(key, value).apply();
     }
 
     /**
@@ -244,12 +931,10 @@ public class ControlPanelEffect {
      * @return parameter value
      */
     public static Boolean getParameterBoolean(final Context context, final String prefLevel, final Key key) {
-        final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                Context.MODE_PRIVATE);
         boolean value = false;
 
         try {
-            value = prefs.getBoolean(key.toString(), value);
+            value = getConfig(context, prefLevel).getBoolean(key, value);
         } catch (final RuntimeException e) {
             Log.e(TAG, "getParameterBoolean: " + key + "; " + value + "; " + e);
         }
@@ -268,72 +953,64 @@ public class ControlPanelEffect {
      */
     public static void setParameterInt(final Context context, final String prefLevel, final Key key, final int arg0,
             final int arg1) {
-        String strKey = key.toString();
-        int value = arg0;
+        edit(context, prefLevel).putInt(key, arg0, arg1).apply();
+    }
 
-        try {
-            final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                    Context.MODE_PRIVATE);
-            final SharedPreferences.Editor editor = prefs.edit();
-            final ControlMode controlMode = getControlMode();
+    /**
+     * Stores an int parameter in the builder, arg is DUMMY_ARGUMENT for keys without index.
+     * Called with mConfigWriteLock held.
+     */
+    private static void putParameterInt(final EffectConfig.Builder builder, final Key key,
+            final int value, final int arg) {
+        switch (key) {
+            // Equalizer
+            case eq_band_level: {
+                if (arg == DUMMY_ARGUMENT) {
+                    throw new IllegalArgumentException("Dummy arg passed.");
+                }
+                final short band = (short) arg;
+                builder.putInt(Key.eq_preset_user_band_level, band, value);
+                builder.putInt(key, band, value);
+                break;
+            }
 
-            switch (key) {
-                // Equalizer
-                case eq_band_level: {
-                    if (arg1 == DUMMY_ARGUMENT) {
-                        throw new IllegalArgumentException("Dummy arg passed.");
+            case eq_current_preset: {
+                final short preset = (short) value;
+                final int numBands = builder.getInt(Key.eq_num_bands,
+                        EQUALIZER_NUMBER_BANDS_DEFAULT);
+                final int numPresets = builder.getInt(Key.eq_num_presets,
+                        EQUALIZER_NUMBER_PRESETS_DEFAULT);
+                final short[] eQPresetUserBandLevelDefault = Arrays.copyOf(
+                        EQUALIZER_PRESET_USER_BAND_LEVEL_DEFAULT, numBands);
+                for (short band = 0; band < numBands; band++) {
+                    short bandLevel = 0;
+                    if (preset < numPresets) {
+                        // OpenSL ES EQ Effect presets
+                        bandLevel = mEQPresetOpenSLESBandLevel[preset][band];
+                    } else {
+                        // User
+                        bandLevel = (short) builder.getInt(
+                                Key.eq_preset_user_band_level, band,
+                                eQPresetUserBandLevelDefault[band]);
                     }
-                    final short band = (short) arg1;
-                    strKey = strKey + band;
-                    editor.putInt(Key.eq_preset_user_band_level.toString() + band, value);
-                    break;
-                }
-
-                case eq_current_preset: {
-                    final short preset = (short) value;
-                    final int numBands = prefs.getInt(Key.eq_num_bands.toString(),
-                            EQUALIZER_NUMBER_BANDS_DEFAULT);
-                    final int numPresets = prefs.getInt(Key.eq_num_presets.toString(),
-                            EQUALIZER_NUMBER_PRESETS_DEFAULT);
-                    final short[] eQPresetUserBandLevelDefault = Arrays.copyOf(
-                            EQUALIZER_PRESET_USER_BAND_LEVEL_DEFAULT, numBands);
-                    for (short band = 0; band < numBands; band++) {
-                        short bandLevel = 0;
-                        if (preset < numPresets) {
-                            // OpenSL ES EQ Effect presets
-                            bandLevel = mEQPresetOpenSLESBandLevel[preset][band];
-                        } else {
-                            // User
-                            bandLevel = (short) prefs.getInt(
-                                    Key.eq_preset_user_band_level.toString() + band,
-                                    eQPresetUserBandLevelDefault[band]);
-                        }
-                        editor.putInt(Key.eq_band_level.toString() + band, bandLevel);
-                    }
-                    break;
+                    builder.putInt(Key.eq_band_level, band, bandLevel);
                 }
-                case eq_preset_user_band_level:
-                    // Fall through
-                case eq_preset_user_band_level_default:
-                    if (arg1 == DUMMY_ARGUMENT) {
-                        throw new IllegalArgumentException("Dummy arg passed.");
-                    }
-                    final short band = (short) arg1;
-                    strKey = strKey + band;
-                    break;
-            }
-
-            // Set preferences
-            editor.putInt(strKey, value);
-            editor.apply();
-
-            if (controlMode == ControlMode.CONTROL_EFFECTS) {
-                updateDsp(context, prefLevel);
+                builder.putInt(key, value);
+                break;
             }
-        } catch (final RuntimeException e) {
-            Log.e(TAG, "setParameterInt: " + key + "; " + arg0 + "; " + arg1 + "; " + e);
+            case eq_preset_user_band_level:
+                // Fall through
+            case eq_preset_user_band_level_default:
+                if (arg == DUMMY_ARGUMENT) {
+                    throw new IllegalArgumentException("Dummy arg passed.");
+                }
+                final short band = (short) arg;
+                builder.putInt(key, band, value);
+                break;
+            default:
+                builder.putInt(key, value);
+                break;
         }
-
     }
 
     /**
@@ -358,9 +1035,12 @@ public class ControlPanelEffect {
         int value = 0;
 
         try {
-            final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                    Context.MODE_PRIVATE);
-            value = prefs.getInt(key, value);
+            final int[] result = new int[1];
+            if (getConfig(context, prefLevel).lookupInt(key, value, result)) {
+                value = result[0];
+            } else {
+                Log.w(TAG, "getParameterInt: Unknown key " + key);
+            }
         } catch (final RuntimeException e) {
             Log.e(TAG, "getParameterInt: " + key + "; " + e);
         }
@@ -376,7 +1056,7 @@ public class ControlPanelEffect {
      * @return parameter value
      */
     public static int getParameterInt(final Context context, final String prefLevel, final Key key) {
-        return getParameterInt(context, prefLevel, key.toString());
+        return getConfig(context, prefLevel).getInt(key, 0);
     }
 
     /**
@@ -388,7 +1068,7 @@ public class ControlPanelEffect {
      * @return parameter value
      */
     public static int getParameterInt(final Context context, final String prefLevel, final Key key, final int arg) {
-        return getParameterInt(context, prefLevel, key.toString() + arg);
+        return getConfig(context, prefLevel).getInt(key, arg, 0);
     }
 
     /**
@@ -414,8 +1094,7 @@ public class ControlPanelEffect {
      * @return parameter value array
      */
     public static int[] getParameterIntArray(final Context context, final String prefLevel, final Key key) {
-        final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                Context.MODE_PRIVATE);
+        final EffectConfig config = getConfig(context, prefLevel);
 
         int[] intArray = null;
         try {
@@ -432,7 +1111,7 @@ public class ControlPanelEffect {
             case eq_preset_user_band_level:
                 // Fall through
             case eq_preset_user_band_level_default:
-                final int numBands = prefs.getInt(Key.eq_num_bands.toString(), 0);
+                final int numBands = config.getInt(Key.eq_num_bands, 0);
                 intArray = new int[numBands];
                 break;
             default:
@@ -441,7 +1120,7 @@ public class ControlPanelEffect {
             }
 
             for (int i = 0; i < intArray.length; i++) {
-                intArray[i] = prefs.getInt(key.toString() + i, 0);
+                intArray[i] = config.getInt(key, i, 0);
             }
 
         } catch (final RuntimeException e) {
@@ -461,11 +1140,13 @@ public class ControlPanelEffect {
     public static String getParameterString(final Context context, final String prefLevel, final String key) {
         String value = "";
         try {
-            final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                    Context.MODE_PRIVATE);
-
             // Get effect parameters
-            value = prefs.getString(key, value);
+            final String stored = getConfig(context, prefLevel).lookupString(key, value);
+            if (stored != null) {
+                value = stored;
+            } else {
+                Log.w(TAG, "getParameterString: Unknown key " + key);
+            }
 
         } catch (final RuntimeException e) {
             Log.e(TAG, "getParameterString: " + key + "; " + e);
@@ -493,28 +1174,237 @@ public class ControlPanelEffect {
      * @return parameter value
      */
     public static String getParameterString(final Context context, final String prefLevel, final Key key, final int arg) {
-        return getParameterString(context, prefLevel, key.toString() + arg);
+        return getConfig(context, prefLevel).getString(key, arg, "");
+    }
+
+    /**
+     * Applies all pending parameter changes to the DSP right away. Called at the end of a
+     * gesture so the final value is not delayed.
+     */
+    public static void flushPendingUpdates() {
+        mDspUpdateScheduler.flush();
+    }
+
+    /**
+     * Configures how parameter changes are coalesced before being applied to the DSP.
+     *
+     * @param minIntervalMs
+     *            minimum time between two DSP updates
+     * @param maxLatencyMs
+     *            maximum time a parameter change may wait before it is applied
+     */
+    public static void setDspUpdateLatency(final long minIntervalMs, final long maxLatencyMs) {
+        mDspUpdateScheduler.setLatency(minIntervalMs, maxLatencyMs);
+    }
+
+    /**
+     * Sets the maximum number of threads a DSP update is spread over when many sessions are
+     * open. 1 applies the updates to one session after the other.
+     *
+     * @param parallelism
+     */
+    public static void setDspUpdateParallelism(final int parallelism) {
+        if (parallelism < 1 || parallelism > DSP_UPDATE_PARALLELISM_MAX) {
+            throw new IllegalArgumentException("Parallelism out of range: " + parallelism);
+        }
+        mDspUpdateParallelism = parallelism;
+    }
+
+    public static int getDspUpdateParallelism() {
+        return mDspUpdateParallelism;
+    }
+
+    /**
+     * Returns the number of DSP updates requested by parameter changes.
+     */
+    public static long getSubmittedDspUpdates() {
+        return mDspUpdateScheduler.getSubmittedCount();
+    }
+
+    /**
+     * Returns the number of DSP updates actually applied to the open sessions.
+     */
+    public static long getAppliedDspUpdates() {
+        return mDspUpdateScheduler.getAppliedCount();
+    }
+
+    /**
+     * Returns the number of parameter calls made into native effects so far. Each call is one
+     * binder transaction to the audio server.
+     */
+    public static long getEffectCallCount() {
+        return EffectSet.getEffectCallCount();
+    }
+
+    /**
+     * Returns the number of parameter calls made into native effects by the last DSP update.
+     */
+    public static long getLastDspUpdateEffectCalls() {
+        return mLastDspUpdateEffectCalls;
+    }
+
+    /**
+     * Returns the number of effect set updates aborted because an effect call failed, the
+     * effects of the set are recreated by the next update.
+     */
+    public static long getEffectFailureCount() {
+        return EffectSet.getEffectFailureCount();
+    }
+
+    /**
+     * Returns the number of native effect instances currently held for the open sessions.
+     */
+    public static int getLiveEffectCount() {
+        return EffectSet.getLiveEffectCount();
     }
 
     public static ControlMode getControlMode() {
-        if (mAudioSessions.size() == 0) {
+        if (mAudioSessions.size() == 0 && mGlobalEffectSet == null) {
             return ControlMode.CONTROL_PREFERENCES;
         }
         return ControlMode.CONTROL_EFFECTS;
     }
 
+    /**
+     * Publishes the debounced route model of the SystemService, or clears it with null.
+     *
+     * @param routeDebouncer
+     */
+    static void setRouteDebouncer(final RouteDebouncer routeDebouncer) {
+        mRouteDebouncer = routeDebouncer;
+    }
+
+    /**
+     * Returns the scope of the active output route. Reads the last settled route of the
+     * in-memory route model while the SystemService runs.
+     *
+     * @param context
+     */
     public static String getCurrentPrevLevel(Context context) {
-        boolean useBluetooth = ControlPanelEffect.getParameterBoolean(context,
-                    ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.bluetooth);
-        boolean useHeadset = ControlPanelEffect.getParameterBoolean(context,
-                    ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.headset);
-        if (useBluetooth) {
-            return BLUETOOTH_PREF_SCOPE;
+        final RouteDebouncer routeDebouncer = mRouteDebouncer;
+        if (routeDebouncer != null) {
+            return routeDebouncer.getScope();
         }
-        if (useHeadset) {
-            return HEADSET_PREF_SCOPE;
+        return getPersistedRoute(context).mScope;
+    }
+
+    /**
+     * Applies the current scope to the open sessions right away, like a change of the persisted
+     * route does. Used when the settled route switched scopes but kept its id, e.g. for another
+     * Bluetooth device.
+     *
+     * @param context
+     */
+    static void applyCurrentScope(final Context context) {
+        if (getControlMode() != ControlMode.CONTROL_EFFECTS) {
+            return;
+        }
+        mRouteChangeTime.compareAndSet(0, System.nanoTime());
+        mDspUpdateScheduler.submit(context, getCurrentPrevLevel(context));
+        mDspUpdateScheduler.flush();
+    }
+
+    /**
+     * Returns the last persisted output route. Falls back to the routing flags written before
+     * the route was persisted by id.
+     *
+     * @param context
+     */
+    static Route getPersistedRoute(final Context context) {
+        final EffectConfig global = getConfig(context, GLOBAL_PREF_SCOPE);
+        final Route route = RouteTable.forId(global.getInt(Key.output_route, -1));
+        if (route != null) {
+            return route;
+        }
+        if (global.getBoolean(Key.bluetooth, false)) {
+            return RouteTable.BLUETOOTH;
+        }
+        if (global.getBoolean(Key.headset, false)) {
+            return RouteTable.HEADSET;
+        }
+        return RouteTable.SPEAKER;
+    }
+
+    /**
+     * Returns the scope holding the effect parameters of the Bluetooth device.
+     *
+     * @param address
+     *            the device address, e.g. "00:11:22:AA:BB:CC"
+     */
+    static String getBluetoothDeviceScope(final String address) {
+        return BLUETOOTH_DEVICE_SCOPE_PREFIX + address.replace(":", "").toLowerCase(Locale.US);
+    }
+
+    /**
+     * Makes the scope of a Bluetooth device hot before it becomes active, so that switching to
+     * it needs no disk read. A cold scope is loaded from the ProfileStore, a device seen for
+     * the first time starts with a copy of the shared Bluetooth scope. Beyond HOT_DEVICE_SCOPES
+     * the least recently used device scope is dropped from memory.
+     *
+     * @param context
+     * @param scope
+     *            a scope returned by getBluetoothDeviceScope
+     */
+    static void loadBluetoothDeviceScope(final Context context, final String scope) {
+        checkNotMainThread("loadBluetoothDeviceScope");
+        synchronized (mConfigWriteLock) {
+            if (mHotDeviceScopes.get(scope) != null) {
+                mDeviceScopeHits.incrementAndGet();
+                return;
+            }
+        }
+        mDeviceScopeLoads.incrementAndGet();
+        final EffectConfig config = loadConfig(context, scope);
+        String evicted = null;
+        try {
+            synchronized (mConfigWriteLock) {
+                if (!config.contains(Key.init_stamp)) {
+                    final EffectConfig.Builder builder = getConfig(context,
+                            BLUETOOTH_PREF_SCOPE).buildUpon();
+                    builder.markAllDirty();
+                    publishConfig(context, scope, builder);
+                }
+                mHotDeviceScopes.put(scope, Boolean.TRUE);
+                if (mHotDeviceScopes.size() > HOT_DEVICE_SCOPES) {
+                    final Iterator<String> eldest = mHotDeviceScopes.keySet().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                }
+            }
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "loadBluetoothDeviceScope: " + scope + "; " + e);
+        }
+        if (evicted != null) {
+            evictDeviceScope(context, evicted);
+        }
+        // stamped with the EQ properties of an older build
+        initScopePreferences(context, scope, getPreferencesStamp());
+    }
+
+    /**
+     * Drops the snapshot of a scope removed from mHotDeviceScopes. The queued changes reach the
+     * store before the snapshot is dropped, the flush runs without mConfigWriteLock so edits of
+     * other scopes do not wait for the disk.
+     */
+    private static void evictDeviceScope(final Context context, final String scope) {
+        final PersistenceWriter writer = getPersistenceWriter(context);
+        while (true) {
+            writer.flush();
+            synchronized (mConfigWriteLock) {
+                if (mHotDeviceScopes.containsKey(scope)) {
+                    // loaded again meanwhile
+                    return;
+                }
+                // changes published during the flush need another one
+                if (!writer.isPending(scope)) {
+                    mConfigs.remove(scope);
+                    mCommands.remove(scope);
+                    break;
+                }
+            }
         }
-        return SPEAKER_PREF_SCOPE;
+        ProfileStore.getInstance(context).close(scope);
+        mDeviceScopeEvictions.incrementAndGet();
     }
 
     /**
@@ -530,22 +1420,120 @@ public class ControlPanelEffect {
             final int audioSession) {
         Log.d(TAG, "openSession " + packageName + " " + audioSession);
 
-        initEffectsPreferences(context);
+        final long start = System.nanoTime();
+        mSessionOpens.incrementAndGet();
+        try {
+            initEffectsPreferences(context);
+            final EffectCapabilities capabilities = EffectCapabilities.get(context);
+            final long created = System.nanoTime();
+            final long parkedHits = mAudioSessions.getParkedHits();
+            final EffectSet effectSet = mAudioSessions.open(audioSession, capabilities,
+                    mEffectBackend);
+            if (effectSet == null) {
+                return;
+            }
+            if (mAudioSessions.getParkedHits() != parkedHits) {
+                mSessionReopens.incrementAndGet();
+            }
+            mOpenRegisterLatency.record(System.nanoTime() - created);
+
+            if (mGlobalEffectSet != null) {
+                // the global output mix is processed instead, the session gets effects when
+                // the mode is switched back. A reattached parked set may still hold effects.
+                Log.d(TAG, "openSession: global session mode");
+                effectSet.releaseEffects();
+                return;
+            }
+            final long read = System.nanoTime();
+            String currentLevel = getCurrentPrevLevel(context);
+            Log.d(TAG, "openSession scope = " + currentLevel);
+            final EffectCommands commands = getCommands(context, currentLevel);
+            final long applied = System.nanoTime();
+            mOpenReadLatency.record(applied - read);
+            updateEffectSet(commands, effectSet);
+            mOpenApplyLatency.record(System.nanoTime() - applied);
+        } catch (final RuntimeException e) {
+            mSessionFailures.incrementAndGet();
+            throw e;
+        } finally {
+            mOpenLatency.record(System.nanoTime() - start);
+        }
+    }
 
-        EffectSet effectSet = null; 
-        if (!mAudioSessions.containsKey(audioSession)) {
-            effectSet = new EffectSet(audioSession);
-            mAudioSessions.put(audioSession, effectSet);
-        } else {
+    /**
+     * Selects if one effect chain is attached to the global output mix (session 0) instead of
+     * one per audio session. The setting is stored and the switch runs on the control thread.
+     *
+     * @param context
+     * @param enabled
+     */
+    public static void setGlobalSessionMode(final Context context, final boolean enabled) {
+        edit(context, GLOBAL_PREF_SCOPE).putBoolean(Key.global_session, enabled).apply();
+        applySessionMode(context);
+    }
+
+    public static boolean isGlobalSessionMode(final Context context) {
+        return getParameterBoolean(context, GLOBAL_PREF_SCOPE, Key.global_session);
+    }
+
+    /**
+     * Attaches the effects according to the stored session mode.
+     *
+     * @param context
+     */
+    static void applySessionMode(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                switchSessionMode(appContext, isGlobalSessionMode(appContext));
+            }
+        });
+    }
+
+    /**
+     * Switches between the per-session and the global effects. The new effects are created and
+     * configured before the old ones are released, so the audio is processed without gap.
+     * Runs on the control thread.
+     */
+    private static void switchSessionMode(final Context context, final boolean global) {
+        if (global == (mGlobalEffectSet != null)) {
             return;
         }
+        Log.i(TAG, "switchSessionMode: global = " + global);
+        final EffectCommands commands = getCommands(context, getCurrentPrevLevel(context));
+        if (global) {
+            final EffectSet globalEffectSet = new EffectSet(0, EffectCapabilities.get(context),
+                    mEffectBackend);
+            updateEffectSet(commands, globalEffectSet);
+            mGlobalEffectSet = globalEffectSet;
+            for (EffectSet effectSet : mAudioSessions.snapshot()) {
+                effectSet.releaseEffects();
+            }
+        } else {
+            final EffectSet globalEffectSet = mGlobalEffectSet;
+            mGlobalEffectSet = null;
+            for (EffectSet effectSet : mAudioSessions.snapshot()) {
+                updateEffectSet(commands, effectSet);
+            }
+            globalEffectSet.release();
+        }
+    }
 
-        String currentLevel = getCurrentPrevLevel(context);
-        Log.d(TAG, "openSession scope = " + currentLevel);
-        final SharedPreferences prefs = context.getSharedPreferences(currentLevel,
-                Context.MODE_PRIVATE);
-
-        updateEffectSet(prefs, effectSet);
+    /**
+     * Releases the global output mix effects, if attached. Called when the service stops.
+     */
+    public static void releaseGlobalSession() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final EffectSet globalEffectSet = mGlobalEffectSet;
+                mGlobalEffectSet = null;
+                if (globalEffectSet != null) {
+                    globalEffectSet.release();
+                }
+            }
+        });
     }
 
     /**
@@ -559,52 +1547,240 @@ public class ControlPanelEffect {
     public static void closeSession(final Context context, final String packageName,
             final int audioSession) {
         Log.d(TAG, "closeSession " + packageName + " " + audioSession);
-        EffectSet gone = mAudioSessions.remove(audioSession);
-        if (gone != null) {
-            gone.release();
+        final long start = System.nanoTime();
+        mSessionCloses.incrementAndGet();
+        try {
+            final long now = SystemClock.uptimeMillis();
+            EffectSet gone = mAudioSessions.close(audioSession, now);
+            if (gone != null) {
+                gone.release();
+            } else if (mAudioSessions.getParkedCount() > 0) {
+                // released unless the session is reopened within the grace period
+                mHandler.postAtTime(mReleaseParkedRunnable, now
+                        + mAudioSessions.getGracePeriod());
+            }
+        } catch (final RuntimeException e) {
+            mSessionFailures.incrementAndGet();
+            throw e;
+        } finally {
+            mCloseLatency.record(System.nanoTime() - start);
         }
     }
 
-    public static void setEnabled(Context context, final String prefLevel, boolean value) {
-        final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                Context.MODE_PRIVATE);
-        prefs.edit().putBoolean(Key.global_enabled.toString(), value).commit();
-        final ControlMode controlMode = getControlMode();
-        if (controlMode == ControlMode.CONTROL_EFFECTS) {
-            updateDsp(context, prefLevel);
+    /**
+     * Prints the state of the effect control: active scope, session registry, applied
+     * parameters, capabilities and counters. Only reads in-memory state, scopes which are not
+     * loaded yet are reported as such.
+     *
+     * @param pw
+     */
+    public static void dump(final PrintWriter pw) {
+        final EffectConfig global = mConfigs.get(GLOBAL_PREF_SCOPE);
+        pw.println("Scopes:");
+        final RouteDebouncer routeDebouncer = mRouteDebouncer;
+        if (routeDebouncer != null) {
+            pw.println("  route=" + routeDebouncer.getRouteStateMachine());
+            pw.println("  debouncer: " + routeDebouncer);
+        }
+        if (global != null) {
+            pw.println("  outputRoute=" + RouteTable.forId(global.getInt(Key.output_route, -1))
+                    + " globalSession=" + global.getBoolean(Key.global_session, false));
+        }
+        for (String prefLevel : ALL_PREF_SCOPES) {
+            dumpScope(pw, prefLevel);
+        }
+        final String[] deviceScopes;
+        synchronized (mConfigWriteLock) {
+            deviceScopes = mHotDeviceScopes.keySet().toArray(new String[0]);
+        }
+        pw.println("  hot device scopes, least recently used first:");
+        for (String prefLevel : deviceScopes) {
+            dumpScope(pw, prefLevel);
+        }
+        pw.println("Sessions: controlMode=" + getControlMode());
+        final EffectSet globalEffectSet = mGlobalEffectSet;
+        if (globalEffectSet != null) {
+            globalEffectSet.dump(pw, "  global ");
+        }
+        mAudioSessions.dump(pw, "  ");
+        pw.println("Capabilities:");
+        final EffectCapabilities capabilities = EffectCapabilities.peek();
+        if (capabilities != null) {
+            capabilities.dump(pw, "  ");
+        } else {
+            pw.println("  not loaded");
         }
+        pw.println("Routes:");
+        RouteTable.dump(pw, "  ");
+        pw.println("  deviceScopeHits=" + mDeviceScopeHits.get() + " loads="
+                + mDeviceScopeLoads.get() + " evictions=" + mDeviceScopeEvictions.get());
+        pw.println("DSP updates: submitted=" + mDspUpdateScheduler.getSubmittedCount()
+                + " applied=" + mDspUpdateScheduler.getAppliedCount() + " parallelism="
+                + mDspUpdateParallelism);
+        pw.println("Effects: live=" + EffectSet.getLiveEffectCount() + " calls="
+                + EffectSet.getEffectCallCount() + " lastUpdateCalls="
+                + mLastDspUpdateEffectCalls + " failures=" + EffectSet.getEffectFailureCount());
+        final PersistenceWriter writer;
+        synchronized (ControlPanelEffect.class) {
+            writer = mPersistenceWriter;
+        }
+        if (writer != null) {
+            pw.println("Persistence: writes=" + writer.getWriteCount() + " merged="
+                    + writer.getMergedCount() + " groups=" + writer.getGroupCount());
+        }
+        pw.println("Session lifecycle:");
+        dumpSessionStats(pw, "  ");
     }
 
-    private static void updateEffectSet(SharedPreferences prefs, EffectSet effectSet) {
-        Log.d(TAG, "updateEffectSet " + effectSet.mAudioSession);
+    private static void dumpScope(final PrintWriter pw, final String prefLevel) {
+        final EffectConfig config = mConfigs.get(prefLevel);
+        pw.println("  " + prefLevel + ": " + (config != null ? config : "not loaded"));
+        final EffectCommands commands = mCommands.get(prefLevel);
+        if (commands != null) {
+            pw.println("    commands" + (commands.mConfig != config ? " (stale)" : "") + ": "
+                    + commands);
+        }
+    }
 
-        final boolean isGlobalEnabled = prefs.getBoolean(Key.global_enabled.toString(),
-                GLOBAL_ENABLED_DEFAULT);
+    /**
+     * Prints the session lifecycle counters and latency histograms. Only reads in-memory
+     * state.
+     *
+     * @param pw
+     * @param prefix
+     */
+    public static void dumpSessionStats(final PrintWriter pw, final String prefix) {
+        pw.print(prefix);
+        pw.print("opens=");
+        pw.print(mSessionOpens.get());
+        pw.print(" reopens=");
+        pw.print(mSessionReopens.get());
+        pw.print(" closes=");
+        pw.print(mSessionCloses.get());
+        pw.print(" failures=");
+        pw.println(mSessionFailures.get());
+        mOpenLatency.dump(pw, prefix);
+        mOpenRegisterLatency.dump(pw, prefix);
+        mOpenReadLatency.dump(pw, prefix);
+        mOpenApplyLatency.dump(pw, prefix);
+        mCloseLatency.dump(pw, prefix);
+        mRouteChangeLatency.dump(pw, prefix);
+    }
 
-        final int strength = prefs.getInt(Key.virt_strength.toString(), VIRTUALIZER_STRENGTH_DEFAULT);
-        effectSet.mVirtualizer.setStrength((short) strength);
-        boolean virtOn = prefs.getBoolean(Key.virt_enabled.toString(), VIRTUALIZER_ENABLED_DEFAULT);
-        effectSet.mVirtualizer.setEnabled(isGlobalEnabled && virtOn);
-
-        final int bBStrength = prefs.getInt(Key.bb_strength.toString(),
-                BASS_BOOST_STRENGTH_DEFAULT);
-        effectSet.mBassBoost.setStrength((short) bBStrength);
-        boolean bbOn = prefs.getBoolean(Key.bb_enabled.toString(), BASS_BOOST_ENABLED_DEFAULT);
-        effectSet.mBassBoost.setEnabled(isGlobalEnabled && bbOn);
-
-        final short preset = (short) prefs.getInt(Key.pr_current_preset.toString(), PRESET_REVERB_CURRENT_PRESET_DEFAULT);
-        effectSet.mPresetReverb.setPreset(preset);
-        boolean reverbOn = prefs.getBoolean(Key.pr_enabled.toString(), PRESET_REVERB_ENABLED_DEFAULT);
-        effectSet.mPresetReverb.setEnabled(isGlobalEnabled && reverbOn);
-
-        int eQPreset = (short) prefs .getInt(Key.eq_current_preset.toString(), mEQNumPresets);
-        final int numBands = prefs.getInt(Key.eq_num_bands.toString(),
-                EQUALIZER_NUMBER_BANDS_DEFAULT);
-        final int numPresets = prefs.getInt(Key.eq_num_presets.toString(),
+    /**
+     * Releases the effects of all closed sessions still kept for a possible reopen. The release
+     * runs on the control thread.
+     */
+    public static void releaseParkedSessions() {
+        mHandler.removeCallbacks(mReleaseParkedRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseSessions(mAudioSessions.expire(Long.MAX_VALUE));
+            }
+        });
+    }
+
+    private static void releaseSessions(final EffectSet[] effectSets) {
+        for (EffectSet effectSet : effectSets) {
+            Log.d(TAG, "release parked session " + effectSet.mAudioSession);
+            effectSet.release();
+        }
+    }
+
+    /**
+     * Sets the time closed sessions keep their effects for a reopen of the same session. 0
+     * releases the effects on close.
+     *
+     * @param gracePeriodMs
+     */
+    public static void setSessionReleaseGracePeriod(final long gracePeriodMs) {
+        if (gracePeriodMs < 0) {
+            throw new IllegalArgumentException("Negative grace period");
+        }
+        mAudioSessions.setGracePeriod(gracePeriodMs);
+        if (gracePeriodMs == 0) {
+            releaseParkedSessions();
+        }
+    }
+
+    /**
+     * Returns the number of session opens which reattached the effects of a closed session.
+     */
+    public static long getParkedSessionHits() {
+        return mAudioSessions.getParkedHits();
+    }
+
+    /**
+     * Returns the number of session opens which created new effects while closed sessions
+     * were kept.
+     */
+    public static long getParkedSessionMisses() {
+        return mAudioSessions.getParkedMisses();
+    }
+
+    public static void setEnabled(Context context, final String prefLevel, boolean value) {
+        edit(context, prefLevel).putBoolean(Key.global_enabled, value).apply();
+    }
+
+    static void updateEffectSet(EffectCommands commands, EffectSet effectSet) {
+        synchronized (effectSet) {
+            // the session may have been closed while the update was pending
+            if (!effectSet.mReleased) {
+                try {
+                    applyEffectSet(commands, effectSet);
+                } catch (final RuntimeException e) {
+                    // e.g. an effect lost control or died with the audio server. Start over
+                    // with new effects on the next update instead of failing on the old ones.
+                    Log.e(TAG, "updateEffectSet: " + effectSet.mAudioSession + "; " + e);
+                    EffectSet.mEffectFailures.incrementAndGet();
+                    effectSet.releaseEffects();
+                }
+            }
+        }
+    }
+
+    /**
+     * Compiles the effect state of the snapshot into commands.
+     *
+     * @param config
+     * @param effectMask
+     *            the effects applied on the scope's route, the others are compiled disabled
+     */
+    private static EffectCommands compile(final EffectConfig config, final int effectMask) {
+        final boolean isGlobalEnabled = config.getBoolean(Key.global_enabled,
+                GLOBAL_ENABLED_DEFAULT);
+        final short[] commands = new short[5 * EffectCommands.COMMAND_SIZE];
+        int i = 0;
+
+        boolean virtOn = config.getBoolean(Key.virt_enabled, VIRTUALIZER_ENABLED_DEFAULT);
+        commands[i++] = EffectCommands.VIRTUALIZER;
+        virtOn &= (effectMask & RouteTable.mask(Type.VIRTUALIZER)) != 0;
+        commands[i++] = (short) (isGlobalEnabled && virtOn ? 1 : 0);
+        commands[i++] = (short) config.getInt(Key.virt_strength, VIRTUALIZER_STRENGTH_DEFAULT);
+
+        boolean bbOn = config.getBoolean(Key.bb_enabled, BASS_BOOST_ENABLED_DEFAULT);
+        commands[i++] = EffectCommands.BASS_BOOST;
+        bbOn &= (effectMask & RouteTable.mask(Type.BASS_BOOST)) != 0;
+        commands[i++] = (short) (isGlobalEnabled && bbOn ? 1 : 0);
+        commands[i++] = (short) config.getInt(Key.bb_strength, BASS_BOOST_STRENGTH_DEFAULT);
+
+        boolean reverbOn = config.getBoolean(Key.pr_enabled, PRESET_REVERB_ENABLED_DEFAULT);
+        commands[i++] = EffectCommands.PRESET_REVERB;
+        reverbOn &= (effectMask & RouteTable.mask(Type.PRESET_REVERB)) != 0;
+        commands[i++] = (short) (isGlobalEnabled && reverbOn ? 1 : 0);
+        commands[i++] = (short) config.getInt(Key.pr_current_preset,
+                PRESET_REVERB_CURRENT_PRESET_DEFAULT);
+
+        boolean eqOn = config.getBoolean(Key.eq_enabled, EQUALIZER_ENABLED_DEFAULT);
+        eqOn &= (effectMask & RouteTable.mask(Type.EQUALIZER)) != 0;
+        int eQPreset = (short) config.getInt(Key.eq_current_preset, mEQNumPresets);
+        final int numBands = config.getInt(Key.eq_num_bands, EQUALIZER_NUMBER_BANDS_DEFAULT);
+        final int numPresets = config.getInt(Key.eq_num_presets,
                 EQUALIZER_NUMBER_PRESETS_DEFAULT);
         final short[] eQPresetUserBandLevelDefault = Arrays.copyOf(
                 EQUALIZER_PRESET_USER_BAND_LEVEL_DEFAULT, numBands);
-
+        final short[] bandLevels = new short[numBands];
         for (short band = 0; band < numBands; band++) {
             short bandLevel = 0;
             if (eQPreset < numPresets) {
@@ -612,96 +1788,372 @@ public class ControlPanelEffect {
                 bandLevel = mEQPresetOpenSLESBandLevel[eQPreset][band];
             } else {
                 // User
-                bandLevel = (short) prefs.getInt(
-                        Key.eq_preset_user_band_level.toString() + band,
+                bandLevel = (short) config.getInt(
+                        Key.eq_preset_user_band_level, band,
                         eQPresetUserBandLevelDefault[band]);
             }
-            effectSet.mEqualizer.setBandLevel(band, bandLevel);
+            bandLevels[band] = bandLevel;
         }
-        boolean eqOn = prefs.getBoolean(Key.eq_enabled.toString(), EQUALIZER_ENABLED_DEFAULT);
-        effectSet.mEqualizer.setEnabled(isGlobalEnabled && eqOn);
+        commands[i++] = EffectCommands.EQUALIZER;
+        commands[i++] = (short) (isGlobalEnabled && eqOn ? 1 : 0);
+        commands[i++] = 0;
+
+        boolean swOn = config.getBoolean(Key.sw_enabled, STERO_WIDE_ENABLED_DEFAULT);
+        commands[i++] = EffectCommands.STEREO_WIDE;
+        swOn &= (effectMask & RouteTable.mask(Type.STEREO_WIDE)) != 0;
+        commands[i++] = (short) (isGlobalEnabled && swOn ? 1 : 0);
+        commands[i++] = (short) (config.getInt(Key.sw_strength, STERO_WIDE_STRENGTH_DEFAULT)
+                - 1);
+
+        return new EffectCommands(config, commands, bandLevels);
+    }
 
-        if (effectSet.mStereoWide != null) {
-            final int swStrength = prefs.getInt(Key.sw_strength.toString(),
-                    STERO_WIDE_STRENGTH_DEFAULT);
-            effectSet.mStereoWide.setStrength((short) (swStrength - 1));
-            boolean swOn = prefs.getBoolean(Key.sw_enabled.toString(), STERO_WIDE_ENABLED_DEFAULT);
-            effectSet.mStereoWide.setEnabled(isGlobalEnabled && swOn);
+    private static void applyEffectSet(EffectCommands effectCommands, EffectSet effectSet) {
+        Log.d(TAG, "updateEffectSet " + effectSet.mAudioSession);
+
+        final short[] commands = effectCommands.mCommands;
+        for (int i = 0; i < commands.length; i += EffectCommands.COMMAND_SIZE) {
+            final boolean on = commands[i + 1] != 0;
+            final short value = commands[i + 2];
+            switch (commands[i]) {
+            case EffectCommands.VIRTUALIZER:
+                if (effectSet.acquireVirtualizer(on)) {
+                    effectSet.setVirtualizerStrength(value);
+                    effectSet.setVirtualizerEnabled(true);
+                }
+                break;
+            case EffectCommands.BASS_BOOST:
+                if (effectSet.acquireBassBoost(on)) {
+                    effectSet.setBassBoostStrength(value);
+                    effectSet.setBassBoostEnabled(true);
+                }
+                break;
+            case EffectCommands.PRESET_REVERB:
+                if (effectSet.acquirePresetReverb(on)) {
+                    effectSet.setPresetReverbPreset(value);
+                    effectSet.setPresetReverbEnabled(true);
+                }
+                break;
+            case EffectCommands.EQUALIZER:
+                if (effectSet.acquireEqualizer(on)) {
+                    effectSet.setEqualizerBandLevels(effectCommands.mEqBandLevels);
+                    effectSet.setEqualizerEnabled(true);
+                }
+                break;
+            case EffectCommands.STEREO_WIDE:
+                if (effectSet.acquireStereoWide(on)) {
+                    effectSet.setStereoWideStrength(value);
+                    effectSet.setStereoWideEnabled(true);
+                }
+                break;
+            }
         }
     }
 
-    private static void updateDsp(Context context, final String prefLevel) {
+    /**
+     * Applies the commands to the given effect sets. With enough sessions the sets are spread
+     * over the apply workers and the calling thread, each set is updated by exactly one of
+     * them. Returns once all sets are updated, so the updates of one set stay in order.
+     */
+    private static void updateEffectSets(final EffectCommands commands,
+            final EffectSet[] effectSets) {
+        final int parallelism = Math.min(mDspUpdateParallelism, effectSets.length);
+        if (parallelism <= 1 || effectSets.length < PARALLEL_UPDATE_MIN_SESSIONS) {
+            for (EffectSet effectSet : effectSets) {
+                updateEffectSet(commands, effectSet);
+            }
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(parallelism - 1);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        for (int worker = 1; worker < parallelism; worker++) {
+            final int first = worker;
+            mApplyExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = first; i < effectSets.length; i += parallelism) {
+                            updateEffectSet(commands, effectSets[i]);
+                        }
+                    } catch (final RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < effectSets.length; i += parallelism) {
+            updateEffectSet(commands, effectSets[i]);
+        }
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "updateEffectSets interrupted");
+            Thread.currentThread().interrupt();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Pushes the parameters of the given scope to the open sessions if it is the current one.
+     *
+     * @return false if the scope is not current and nothing was pushed
+     */
+    static boolean updateDsp(Context context, final String prefLevel) {
         final String currentLevel = getCurrentPrevLevel(context);
 
         if (!prefLevel.equals(currentLevel)) {
-            return;
+            return false;
+        }
+        final EffectCommands commands = getCommands(context, prefLevel);
+        Log.d(TAG, "updateDsp for level = " + prefLevel + ":" + commands);
+        final long effectCalls = EffectSet.getEffectCallCount();
+        final EffectSet globalEffectSet = mGlobalEffectSet;
+        if (globalEffectSet != null) {
+            updateEffectSet(commands, globalEffectSet);
+        } else {
+            updateEffectSets(commands, mAudioSessions.snapshot());
+        }
+        final long routeChanged = mRouteChangeTime.getAndSet(0);
+        if (routeChanged != 0) {
+            mRouteChangeLatency.record(System.nanoTime() - routeChanged);
         }
-        final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                Context.MODE_PRIVATE);
-        Log.d(TAG, "updateDsp for level = " + prefLevel + ":" + prefs.getAll());
-        for (Integer sessionId : new ArrayList<Integer>(mAudioSessions.keySet())) {
-            EffectSet effectSet = mAudioSessions.get(sessionId);
-            updateEffectSet(prefs, effectSet);
+        mLastDspUpdateEffectCalls = EffectSet.getEffectCallCount() - effectCalls;
+        Log.d(TAG, "updateDsp: " + mAudioSessions.size() + " sessions, "
+                + EffectSet.getLiveEffectCount() + " live effects, "
+                + mLastDspUpdateEffectCalls + " effect calls");
+        return true;
+    }
+
+    /**
+     * Called on the control thread once a retried probe read the EQ properties, initializes
+     * the preferences again with them.
+     *
+     * @param context
+     */
+    static void onCapabilitiesProbed(final Context context) {
+        synchronized (mEQInitLock) {
+            mIsInitialized = false;
+            mPreferencesInitialized = false;
         }
+        initEffectsPreferences(context);
     }
 
     private static void init(Context context) {
-        // If EQ is not initialized already create "dummy" audio session created by
-        // MediaPlayer and create effect on it to retrieve the invariable EQ properties
+        // The invariable EQ properties are probed once per build and cached by
+        // EffectCapabilities, without them keep the defaults until a retried probe succeeds
         if (!mIsInitialized) {
-            final MediaPlayer mediaPlayer = new MediaPlayer();
-            final int session = mediaPlayer.getAudioSessionId();
-            Equalizer equalizerEffect = null;
-            Virtualizer virtualizerEffect = null;
-            try {
-                equalizerEffect = new Equalizer(PRIORITY, session);
+            final EffectCapabilities capabilities = EffectCapabilities.get(context);
+            RouteTable.setCapabilities(capabilities);
+            if (capabilities.mEqualizerProbed) {
+                mEQBandLevelRange = capabilities.mEQBandLevelRange;
+                mEQNumBands = capabilities.getNumberOfBands();
+                mEQCenterFreq = capabilities.mEQCenterFreq;
+                mEQNumPresets = capabilities.getNumberOfPresets();
+                mEQPresetNames = capabilities.mEQPresetNames;
+                mEQPresetOpenSLESBandLevel = capabilities.mEQPresetBandLevels;
+                // a band count mismatch with the default EQ properties may have disabled them
+                EffectSet.mEqPropertiesSupported = true;
+            }
+            mVirtStrengthSupported = capabilities.mVirtualizerStrengthSupported;
+            // without an Equalizer the defaults are final
+            mIsInitialized = !capabilities.isEqualizerProbeFailed();
+            // compiled with the default EQ properties and route effect masks
+            mCommands.clear();
+        }
+    }
 
-                mEQBandLevelRange = equalizerEffect.getBandLevelRange();
-                mEQNumBands = equalizerEffect.getNumberOfBands();
-                mEQCenterFreq = new int[mEQNumBands];
-                for (short band = 0; band < mEQNumBands; band++) {
-                    mEQCenterFreq[band] = equalizerEffect.getCenterFreq(band);
-                }
-                mEQNumPresets = equalizerEffect.getNumberOfPresets();
-                mEQPresetNames = new String[mEQNumPresets];
-                mEQPresetOpenSLESBandLevel = new short[mEQNumPresets][mEQNumBands];
-                for (short preset = 0; preset < mEQNumPresets; preset++) {
-                    mEQPresetNames[preset] = equalizerEffect.getPresetName(preset);
-                    equalizerEffect.usePreset(preset);
-                    for (short band = 0; band < mEQNumBands; band++) {
-                        mEQPresetOpenSLESBandLevel[preset][band] = equalizerEffect
-                                .getBandLevel(band);
+    /**
+     * Batch of parameter changes for one scope. The changes are applied to the latest snapshot
+     * under the config write lock, so they are never lost to concurrent writers, and result in
+     * one published snapshot, one persisted write and one DSP update.
+     */
+    public static final class Editor {
+        private final Context mContext;
+        private final String mPrefLevel;
+        private Key[] mKeys = new Key[4];
+        private int[] mValues = new int[4];
+        private int[] mArgs = new int[4];
+        private int mCount;
+
+        private Editor(final Context context, final String prefLevel) {
+            mContext = context;
+            mPrefLevel = prefLevel;
+        }
+
+        public Editor putBoolean(final Key key, final boolean value) {
+            return putInt(key, value ? 1 : 0, DUMMY_ARGUMENT);
+        }
+
+        public Editor putInt(final Key key, final int value) {
+            return putInt(key, value, DUMMY_ARGUMENT);
+        }
+
+        /**
+         * Sets an indexed int parameter, e.g. the level of band arg for eq_band_level.
+         */
+        public Editor putInt(final Key key, final int value, final int arg) {
+            if (mCount == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mCount * 2);
+                mValues = Arrays.copyOf(mValues, mCount * 2);
+                mArgs = Arrays.copyOf(mArgs, mCount * 2);
+            }
+            mKeys[mCount] = key;
+            mValues[mCount] = value;
+            mArgs[mCount] = arg;
+            mCount++;
+            return this;
+        }
+
+        /**
+         * Publishes and persists all changes and applies them to the open sessions in one DSP
+         * update.
+         */
+        public void apply() {
+            if (mCount == 0) {
+                return;
+            }
+            try {
+                final ControlMode controlMode = getControlMode();
+                boolean routingChanged = false;
+                synchronized (mConfigWriteLock) {
+                    final EffectConfig.Builder builder = getConfig(mContext, mPrefLevel)
+                            .buildUpon();
+                    for (int i = 0; i < mCount; i++) {
+                        putParameterInt(builder, mKeys[i], mValues[i], mArgs[i]);
+                        routingChanged |= mKeys[i] == Key.output_route;
                     }
+                    publishConfig(mContext, mPrefLevel, builder);
                 }
 
-                virtualizerEffect = new Virtualizer(PRIORITY, session);
-                for (String prefLevel : ALL_PREF_SCOPES) {
-                    final SharedPreferences prefs = context.getSharedPreferences(prefLevel,
-                            Context.MODE_PRIVATE);
-                    final SharedPreferences.Editor editor = prefs.edit();
-                    editor.putBoolean(Key.virt_strength_supported.toString(),
-                            virtualizerEffect.getStrengthSupported());
-                    editor.commit();
+                if (controlMode == ControlMode.CONTROL_EFFECTS) {
+                    String newPrefLevel = mPrefLevel;
+                    // if current active level has changed make sure to updateDsp for the
+                    // now active level
+                    if (routingChanged) {
+                        newPrefLevel = getCurrentPrevLevel(mContext);
+                        mRouteChangeTime.compareAndSet(0, System.nanoTime());
+                    }
+                    mDspUpdateScheduler.submit(mContext, newPrefLevel);
+                    if (routingChanged) {
+                        // the new scope's commands are compiled already, apply them now
+                        mDspUpdateScheduler.flush();
+                    }
                 }
-
-                mIsInitialized = true;
-            } catch (final IllegalStateException e) {
-                Log.e(TAG, "Equalizer: " + e);
-            } catch (final IllegalArgumentException e) {
-                Log.e(TAG, "Equalizer: " + e);
-            } catch (final UnsupportedOperationException e) {
-                Log.e(TAG, "Equalizer: " + e);
             } catch (final RuntimeException e) {
-                Log.e(TAG, "Equalizer: " + e);
-            } finally {
-                if (equalizerEffect != null) {
-                    equalizerEffect.release();
+                Log.e(TAG, "apply: " + mPrefLevel + "; " + Arrays.toString(
+                        Arrays.copyOf(mKeys, mCount)) + "; " + e);
+            }
+        }
+    }
+
+    /**
+     * Coalesces DSP updates requested by parameter changes. Requests for the same scope are
+     * merged while pending and flushed at most once per min interval, but never later than max
+     * latency after the first pending request.
+     */
+    static final class DspUpdateScheduler {
+        private final Handler mHandler;
+        private final LinkedHashSet<String> mPendingScopes = new LinkedHashSet<String>();
+        private Context mContext;
+        private long mMinIntervalMs = DSP_UPDATE_MIN_INTERVAL_DEFAULT;
+        private long mMaxLatencyMs = DSP_UPDATE_MAX_LATENCY_DEFAULT;
+        private long mFirstPendingTime;
+        private long mLastFlushTime;
+        private boolean mScheduled;
+        private long mSubmitted;
+        private long mApplied;
+
+        private final Runnable mFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        DspUpdateScheduler(final Handler handler) {
+            mHandler = handler;
+        }
+
+        synchronized void setLatency(final long minIntervalMs, final long maxLatencyMs) {
+            if (minIntervalMs < 0 || maxLatencyMs < 0) {
+                throw new IllegalArgumentException("Negative DSP update latency");
+            }
+            mMinIntervalMs = minIntervalMs;
+            mMaxLatencyMs = maxLatencyMs;
+        }
+
+        synchronized void submit(final Context context, final String prefLevel) {
+            final long now = SystemClock.uptimeMillis();
+            mSubmitted++;
+            mContext = context.getApplicationContext();
+            if (mPendingScopes.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            mPendingScopes.add(prefLevel);
+            if (mScheduled) {
+                return;
+            }
+            final long runAt = Math.min(Math.max(now, mLastFlushTime + mMinIntervalMs),
+                    mFirstPendingTime + mMaxLatencyMs);
+            mScheduled = true;
+            mHandler.postAtTime(mFlushRunnable, runAt);
+        }
+
+        /**
+         * Applies all pending updates without further delay. Called off the handler's thread
+         * the updates are posted to the front of its queue.
+         */
+        void flush() {
+            if (Looper.myLooper() != mHandler.getLooper()) {
+                synchronized (this) {
+                    if (mPendingScopes.isEmpty()) {
+                        return;
+                    }
+                    mHandler.removeCallbacks(mFlushRunnable);
+                    mScheduled = true;
+                }
+                mHandler.postAtFrontOfQueue(mFlushRunnable);
+                return;
+            }
+            final String[] scopes;
+            final Context context;
+            synchronized (this) {
+                if (mScheduled) {
+                    mHandler.removeCallbacks(mFlushRunnable);
+                    mScheduled = false;
                 }
-                if (virtualizerEffect != null) {
-                    virtualizerEffect.release();
+                if (mPendingScopes.isEmpty()) {
+                    return;
                 }
-                mediaPlayer.release();
+                scopes = mPendingScopes.toArray(new String[mPendingScopes.size()]);
+                mPendingScopes.clear();
+                context = mContext;
+                mLastFlushTime = SystemClock.uptimeMillis();
             }
+            int applied = 0;
+            try {
+                for (String prefLevel : scopes) {
+                    if (updateDsp(context, prefLevel)) {
+                        applied++;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    mApplied += applied;
+                }
+            }
+        }
+
+        synchronized long getSubmittedCount() {
+            return mSubmitted;
+        }
+
+        synchronized long getAppliedCount() {
+            return mApplied;
         }
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+import java.util.EnumSet;
+
+/**
+ * Creates the effects applied by ControlPanelEffect. The production backend uses the
+ * framework effects in android.media.audiofx, other implementations allow the session and
+ * DSP paths to run without the audio server.
+ *
+ * Implementations must be thread safe, effects are created and configured from the control
+ * thread and the DSP update workers.
+ */
+interface EffectBackend {
+
+    static enum Type {
+        VIRTUALIZER, BASS_BOOST, EQUALIZER, PRESET_REVERB, STEREO_WIDE
+    }
+
+    /**
+     * Returns the effect types the platform implements.
+     */
+    EnumSet<Type> queryEffects();
+
+    /**
+     * Creates an effect on the given audio session.
+     *
+     * @param type
+     * @param priority
+     * @param audioSession
+     * @throws RuntimeException
+     *             if the effect cannot be created, e.g. UnsupportedOperationException if the
+     *             session has no room for another effect
+     */
+    EffectHandle create(Type type, int priority, int audioSession);
+
+    /**
+     * Allocates an audio session to create effects on while probing the capabilities. No audio
+     * is played on it.
+     *
+     * @return the audio session
+     */
+    int openProbeSession();
+
+    /**
+     * Frees an audio session returned by openProbeSession(). The effects created on it must be
+     * released first.
+     *
+     * @param audioSession
+     */
+    void closeProbeSession(int audioSession);
+}
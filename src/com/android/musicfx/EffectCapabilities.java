@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.android.musicfx.EffectBackend.Type;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Manifest of the effects and effect properties supported by the device.
+ *
+ * Probing requires creating native effects, so the manifest is probed once and persisted
+ * together with the build fingerprint. As long as the fingerprint does not change the
+ * persisted manifest is used. Without an Equalizer the manifest is persisted with the default
+ * EQ properties. A probe which could not read the properties of a supported Equalizer is not
+ * persisted, its result is returned meanwhile and the probe is retried on the control thread
+ * with a growing interval. Once a retry succeeds ControlPanelEffect is initialized again.
+ */
+final class EffectCapabilities {
+
+    private final static String TAG = "MusicFXEffectCapabilities";
+
+    private static final String FILE_NAME = "capabilities";
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Audio session priority
+     */
+    private static final int PRIORITY = 0;
+
+    /**
+     * Time in ms before the first retry of a failed probe, doubled for every further retry.
+     */
+    private static final long PROBE_RETRY_INTERVAL = 60 * 1000;
+
+    /**
+     * Number of retries of a failed probe, the default EQ properties are kept afterwards.
+     */
+    private static final int PROBE_RETRIES = 5;
+
+    final String mFingerprint;
+    final boolean mVirtualizerSupported;
+    final boolean mVirtualizerTransauralSupported;
+    final boolean mVirtualizerStrengthSupported;
+    final boolean mBassBoostSupported;
+    final boolean mEqualizerSupported;
+    final boolean mPresetReverbSupported;
+    final boolean mStereoWideSupported;
+    /** True if the EQ properties below were read from a real Equalizer. */
+    final boolean mEqualizerProbed;
+    final short[] mEQBandLevelRange;
+    final int[] mEQCenterFreq;
+    final String[] mEQPresetNames;
+    final short[][] mEQPresetBandLevels;
+
+    private static volatile EffectCapabilities mCapabilities;
+    private static EffectCapabilities mFailedProbe;
+
+    private EffectCapabilities(String fingerprint, boolean virtualizerSupported,
+            boolean virtualizerTransauralSupported, boolean virtualizerStrengthSupported,
+            boolean bassBoostSupported, boolean equalizerSupported,
+            boolean presetReverbSupported, boolean stereoWideSupported, boolean equalizerProbed,
+            short[] eQBandLevelRange, int[] eQCenterFreq, String[] eQPresetNames,
+            short[][] eQPresetBandLevels) {
+        mFingerprint = fingerprint;
+        mVirtualizerSupported = virtualizerSupported;
+        mVirtualizerTransauralSupported = virtualizerTransauralSupported;
+        mVirtualizerStrengthSupported = virtualizerStrengthSupported;
+        mBassBoostSupported = bassBoostSupported;
+        mEqualizerSupported = equalizerSupported;
+        mPresetReverbSupported = presetReverbSupported;
+        mStereoWideSupported = stereoWideSupported;
+        mEqualizerProbed = equalizerProbed;
+        mEQBandLevelRange = eQBandLevelRange;
+        mEQCenterFreq = eQCenterFreq;
+        mEQPresetNames = eQPresetNames;
+        mEQPresetBandLevels = eQPresetBandLevels;
+    }
+
+    short getNumberOfBands() {
+        return (short) mEQCenterFreq.length;
+    }
+
+    short getNumberOfPresets() {
+        return (short) mEQPresetNames.length;
+    }
+
+    /**
+     * Returns true if the Equalizer is supported but its properties could not be read, i.e.
+     * the probe failed and is retried.
+     */
+    boolean isEqualizerProbeFailed() {
+        return mEqualizerSupported && !mEqualizerProbed;
+    }
+
+    boolean isAnySupported() {
+        return mVirtualizerSupported || mBassBoostSupported || mEqualizerSupported
+                || mPresetReverbSupported || mStereoWideSupported;
+    }
+
+    /**
+     * Returns the manifest if it is already available, never loads or probes it.
+     */
+    static EffectCapabilities peek() {
+        return mCapabilities;
+    }
+
+    void dump(final PrintWriter pw, final String prefix) {
+        pw.println(prefix + "fingerprint=" + mFingerprint);
+        pw.println(prefix + "virtualizer=" + mVirtualizerSupported + " transaural="
+                + mVirtualizerTransauralSupported + " strength=" + mVirtualizerStrengthSupported);
+        pw.println(prefix + "bassBoost=" + mBassBoostSupported + " equalizer="
+                + mEqualizerSupported + " presetReverb=" + mPresetReverbSupported
+                + " stereoWide=" + mStereoWideSupported);
+        pw.println(prefix + "eqProbed=" + mEqualizerProbed + " bandLevelRange="
+                + Arrays.toString(mEQBandLevelRange) + " centerFreq="
+                + Arrays.toString(mEQCenterFreq));
+        pw.println(prefix + "presets=" + Arrays.toString(mEQPresetNames));
+    }
+
+    /**
+     * Returns the manifest, loading or probing it through the current effect backend first if
+     * needed. Blocks while another thread does so. Must not be called on the main thread
+     * unless the manifest or a failed probe is returned.
+     *
+     * @param context
+     * @return the manifest, or the result of a failed probe with the default EQ properties
+     */
+    static synchronized EffectCapabilities get(final Context context) {
+        if (mCapabilities != null) {
+            return mCapabilities;
+        }
+        if (mFailedProbe != null) {
+            // retried on the control thread
+            return mFailedProbe;
+        }
+        ControlPanelEffect.checkNotMainThread("EffectCapabilities.get");
+        final File file = new File(context.getFilesDir(), FILE_NAME);
+        EffectCapabilities capabilities = read(file);
+        if (capabilities == null || !Build.FINGERPRINT.equals(capabilities.mFingerprint)) {
+            capabilities = probe(ControlPanelEffect.getEffectBackend());
+            if (capabilities.isEqualizerProbeFailed()) {
+                mFailedProbe = capabilities;
+                scheduleRetry(context.getApplicationContext(), 1);
+                return capabilities;
+            }
+            write(file, capabilities);
+        }
+        mCapabilities = capabilities;
+        return capabilities;
+    }
+
+    private static void scheduleRetry(final Context context, final int retry) {
+        ControlPanelEffect.getControlHandler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                retryProbe(context, retry);
+            }
+        }, PROBE_RETRY_INTERVAL << (retry - 1));
+    }
+
+    // Runs on the control thread
+    private static void retryProbe(final Context context, final int retry) {
+        synchronized (EffectCapabilities.class) {
+            if (mCapabilities != null) {
+                return;
+            }
+            final EffectCapabilities capabilities = probe(ControlPanelEffect.getEffectBackend());
+            if (capabilities.isEqualizerProbeFailed()) {
+                if (retry < PROBE_RETRIES) {
+                    scheduleRetry(context, retry + 1);
+                } else {
+                    Log.w(TAG, "Equalizer probe failed " + retry + " times, keeping defaults");
+                }
+                return;
+            }
+            write(new File(context.getFilesDir(), FILE_NAME), capabilities);
+            mFailedProbe = null;
+            mCapabilities = capabilities;
+        }
+        ControlPanelEffect.onCapabilitiesProbed(context);
+    }
+
+    private static EffectCapabilities probe(final EffectBackend backend) {
+        ControlPanelEffect.checkNotMainThread("EffectCapabilities.probe");
+        Log.i(TAG, "Probing effect capabilities for " + Build.FINGERPRINT);
+        final EnumSet<Type> types = backend.queryEffects();
+        final boolean virtualizerSupported = types.contains(Type.VIRTUALIZER);
+        final boolean equalizerSupported = types.contains(Type.EQUALIZER);
+
+        // Create effects on probe sessions to retrieve the invariable EQ and virtualizer
+        // properties
+        boolean equalizerProbed = false;
+        short[] bandLevelRange = new short[] { -1500, 1500 };
+        int[] centerFreq = new int[] { 60000, 230000, 910000, 3600000, 14000000 };
+        String[] presetNames = new String[0];
+        short[][] presetBandLevels = new short[0][];
+        boolean strengthSupported = false;
+        boolean transauralSupported = false;
+        // Without an Equalizer the manifest is complete with the default EQ properties
+        if (equalizerSupported) {
+            final int session = backend.openProbeSession();
+            EffectHandle equalizerEffect = null;
+            try {
+                equalizerEffect = backend.create(Type.EQUALIZER, PRIORITY, session);
+                bandLevelRange = equalizerEffect.getBandLevelRange();
+                final short numBands = equalizerEffect.getNumberOfBands();
+                centerFreq = new int[numBands];
+                for (short band = 0; band < numBands; band++) {
+                    centerFreq[band] = equalizerEffect.getCenterFreq(band);
+                }
+                final short numPresets = equalizerEffect.getNumberOfPresets();
+                presetNames = new String[numPresets];
+                presetBandLevels = new short[numPresets][numBands];
+                for (short preset = 0; preset < numPresets; preset++) {
+                    presetNames[preset] = equalizerEffect.getPresetName(preset);
+                    equalizerEffect.usePreset(preset);
+                    for (short band = 0; band < numBands; band++) {
+                        presetBandLevels[preset][band] = equalizerEffect.getBandLevel(band);
+                    }
+                }
+                equalizerProbed = true;
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Equalizer: " + e);
+            } finally {
+                if (equalizerEffect != null) {
+                    equalizerEffect.release();
+                }
+                backend.closeProbeSession(session);
+            }
+        }
+
+        // Without a virtualizer the manifest is complete with the EQ properties alone
+        if (virtualizerSupported) {
+            final int virtSession = backend.openProbeSession();
+            EffectHandle virtualizerEffect = null;
+            try {
+                virtualizerEffect = backend.create(Type.VIRTUALIZER, PRIORITY, virtSession);
+                strengthSupported = virtualizerEffect.getStrengthSupported();
+                transauralSupported = virtualizerEffect.canVirtualizeTransaural();
+            } catch (final RuntimeException e) {
+                Log.e(TAG, "Virtualizer: " + e);
+            } finally {
+                if (virtualizerEffect != null) {
+                    virtualizerEffect.release();
+                }
+                backend.closeProbeSession(virtSession);
+            }
+        }
+
+        return new EffectCapabilities(Build.FINGERPRINT, virtualizerSupported,
+                transauralSupported, strengthSupported, types.contains(Type.BASS_BOOST),
+                types.contains(Type.EQUALIZER), types.contains(Type.PRESET_REVERB),
+                types.contains(Type.STEREO_WIDE), equalizerProbed, bandLevelRange,
+                centerFreq, presetNames, presetBandLevels);
+    }
+
+    private static EffectCapabilities read(final File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            final String fingerprint = in.readUTF();
+            final boolean virtualizerSupported = in.readBoolean();
+            final boolean transauralSupported = in.readBoolean();
+            final boolean strengthSupported = in.readBoolean();
+            final boolean bassBoostSupported = in.readBoolean();
+            final boolean equalizerSupported = in.readBoolean();
+            final boolean presetReverbSupported = in.readBoolean();
+            final boolean stereoWideSupported = in.readBoolean();
+            final boolean equalizerProbed = in.readBoolean();
+            final short[] bandLevelRange = new short[] { in.readShort(), in.readShort() };
+            final int[] centerFreq = new int[in.readShort()];
+            for (int band = 0; band < centerFreq.length; band++) {
+                centerFreq[band] = in.readInt();
+            }
+            final int numPresets = in.readShort();
+            final String[] presetNames = new String[numPresets];
+            final short[][] presetBandLevels = new short[numPresets][centerFreq.length];
+            for (int preset = 0; preset < numPresets; preset++) {
+                presetNames[preset] = in.readUTF();
+                for (int band = 0; band < centerFreq.length; band++) {
+                    presetBandLevels[preset][band] = in.readShort();
+                }
+            }
+            return new EffectCapabilities(fingerprint, virtualizerSupported,
+                    transauralSupported, strengthSupported, bassBoostSupported,
+                    equalizerSupported, presetReverbSupported, stereoWideSupported,
+                    equalizerProbed, bandLevelRange, centerFreq, presetNames, presetBandLevels);
+        } catch (final IOException e) {
+            Log.w(TAG, "read: " + file + "; " + e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException e) {
+                }
+            }
+        }
+    }
+
+    private static void write(final File file, final EffectCapabilities capabilities) {
+        final File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(capabilities.mFingerprint);
+            out.writeBoolean(capabilities.mVirtualizerSupported);
+            out.writeBoolean(capabilities.mVirtualizerTransauralSupported);
+            out.writeBoolean(capabilities.mVirtualizerStrengthSupported);
+            out.writeBoolean(capabilities.mBassBoostSupported);
+            out.writeBoolean(capabilities.mEqualizerSupported);
+            out.writeBoolean(capabilities.mPresetReverbSupported);
+            out.writeBoolean(capabilities.mStereoWideSupported);
+            out.writeBoolean(capabilities.mEqualizerProbed);
+            out.writeShort(capabilities.mEQBandLevelRange[0]);
+            out.writeShort(capabilities.mEQBandLevelRange[1]);
+            out.writeShort(capabilities.mEQCenterFreq.length);
+            for (int freq : capabilities.mEQCenterFreq) {
+                out.writeInt(freq);
+            }
+            out.writeShort(capabilities.mEQPresetNames.length);
+            for (int preset = 0; preset < capabilities.mEQPresetNames.length; preset++) {
+                out.writeUTF(capabilities.mEQPresetNames[preset]);
+                for (short level : capabilities.mEQPresetBandLevels[preset]) {
+                    out.writeShort(level);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "write: cannot rename " + tmp);
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "write: " + file + "; " + e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of all effect parameters of one preference scope.
+ *
+ * Snapshots are shared between threads without locking. Writers never modify a published
+ * snapshot, they derive a new one through a {@link Builder} and publish that instead.
+ */
+final class EffectConfig {
+
+    private static final Key[] KEYS = Key.values();
+    private static final Map<String, Key> KEYS_BY_NAME = new HashMap<String, Key>();
+    static {
+        for (Key key : KEYS) {
+            KEYS_BY_NAME.put(key.toString(), key);
+        }
+    }
+
+    static final EffectConfig EMPTY = new EffectConfig(0L, new int[KEYS.length],
+            new int[KEYS.length][], new String[0]);
+
+    /** Bit n is set if the scalar value of Key with ordinal n is present. */
+    private final long mPresent;
+    /** Scalar values indexed by Key ordinal, booleans are stored as 0/1. */
+    private final int[] mValues;
+    /** Indexed (per band) values indexed by Key ordinal, null if never set. */
+    private final int[][] mIndexed;
+    private final String[] mPresetNames;
+
+    private EffectConfig(long present, int[] values, int[][] indexed, String[] presetNames) {
+        mPresent = present;
+        mValues = values;
+        mIndexed = indexed;
+        mPresetNames = presetNames;
+    }
+
+    private static int indexSuffixStart(final String name) {
+        int i = name.length();
+        while (i > 0 && Character.isDigit(name.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    boolean contains(final Key key) {
+        return (mPresent & (1L << key.ordinal())) != 0;
+    }
+
+    boolean getBoolean(final Key key, final boolean defValue) {
+        return contains(key) ? mValues[key.ordinal()] != 0 : defValue;
+    }
+
+    int getInt(final Key key, final int defValue) {
+        return contains(key) ? mValues[key.ordinal()] : defValue;
+    }
+
+    int getInt(final Key key, final int index, final int defValue) {
+        final int[] values = mIndexed[key.ordinal()];
+        if (values == null || index < 0 || index >= values.length) {
+            return defValue;
+        }
+        return values[index];
+    }
+
+    String getString(final Key key, final int index, final String defValue) {
+        if (key != Key.eq_preset_name || index < 0 || index >= mPresetNames.length
+                || mPresetNames[index] == null) {
+            return defValue;
+        }
+        return mPresetNames[index];
+    }
+
+    /**
+     * Looks up an int value by its raw preference key name, e.g. "eq_band_level3".
+     *
+     * @return true if the name was understood, the value is then stored in out[0]
+     */
+    boolean lookupInt(final String name, final int defValue, final int[] out) {
+        final Key key = KEYS_BY_NAME.get(name);
+        if (key != null) {
+            out[0] = getInt(key, defValue);
+            return true;
+        }
+        final int index = indexSuffixStart(name);
+        if (index <= 0 || index == name.length()) {
+            return false;
+        }
+        final Key indexedKey = KEYS_BY_NAME.get(name.substring(0, index));
+        if (indexedKey == null) {
+            return false;
+        }
+        out[0] = getInt(indexedKey, Integer.parseInt(name.substring(index)), defValue);
+        return true;
+    }
+
+    /**
+     * Looks up a string value by its raw preference key name, e.g. "eq_preset_name2".
+     *
+     * @return the value, defValue if not set or null if the name was not understood
+     */
+    String lookupString(final String name, final String defValue) {
+        final int index = indexSuffixStart(name);
+        if (index <= 0 || index == name.length()
+                || KEYS_BY_NAME.get(name.substring(0, index)) != Key.eq_preset_name) {
+            return null;
+        }
+        return getString(Key.eq_preset_name, Integer.parseInt(name.substring(index)), defValue);
+    }
+
+    Builder buildUpon() {
+        return new Builder(this);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (Key key : KEYS) {
+            if (contains(key)) {
+                sb.append(key).append('=').append(mValues[key.ordinal()]).append(' ');
+            }
+            final int[] values = mIndexed[key.ordinal()];
+            if (values != null) {
+                sb.append(key).append('=').append(Arrays.toString(values)).append(' ');
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Derives a new snapshot from an existing one. Arrays are only copied once they are
+     * modified, the base snapshot is never touched.
+     */
+    static final class Builder {
+        private long mPresent;
+        private int[] mValues;
+        private final int[][] mIndexed;
+        private String[] mPresetNames;
+        private boolean mPresetNamesCopied;
+        private final boolean[] mIndexedCopied = new boolean[KEYS.length];
+
+        private long mDirty;
+        private final BitSet[] mDirtyIndexed = new BitSet[KEYS.length];
+        private final BitSet mDirtyPresetNames = new BitSet();
+
+        Builder(final EffectConfig base) {
+            mPresent = base.mPresent;
+            mValues = base.mValues.clone();
+            mIndexed = base.mIndexed.clone();
+            mPresetNames = base.mPresetNames;
+        }
+
+        Builder putBoolean(final Key key, final boolean value) {
+            return putInt(key, value ? 1 : 0);
+        }
+
+        Builder putInt(final Key key, final int value) {
+            final long bit = 1L << key.ordinal();
+            mPresent |= bit;
+            mDirty |= bit;
+            mValues[key.ordinal()] = value;
+            return this;
+        }
+
+        Builder putInt(final Key key, final int index, final int value) {
+            final int ordinal = key.ordinal();
+            int[] values = mIndexed[ordinal];
+            if (values == null || index >= values.length) {
+                values = values == null ? new int[index + 1] : Arrays.copyOf(values, index + 1);
+                mIndexedCopied[ordinal] = true;
+            } else if (!mIndexedCopied[ordinal]) {
+                values = values.clone();
+                mIndexedCopied[ordinal] = true;
+            }
+            values[index] = value;
+            mIndexed[ordinal] = values;
+            if (mDirtyIndexed[ordinal] == null) {
+                mDirtyIndexed[ordinal] = new BitSet();
+            }
+            mDirtyIndexed[ordinal].set(index);
+            return this;
+        }
+
+        Builder putString(final Key key, final int index, final String value) {
+            if (key != Key.eq_preset_name) {
+                throw new IllegalArgumentException("Unsupported string key " + key);
+            }
+            if (index >= mPresetNames.length) {
+                mPresetNames = Arrays.copyOf(mPresetNames, index + 1);
+                mPresetNamesCopied = true;
+            } else if (!mPresetNamesCopied) {
+                mPresetNames = mPresetNames.clone();
+                mPresetNamesCopied = true;
+            }
+            mPresetNames[index] = value;
+            mDirtyPresetNames.set(index);
+            return this;
+        }
+
+        /**
+         * Sets a value given its raw preference key name, e.g. "eq_band_level3".
+         *
+         * @return false if the name or the type of the value is not understood
+         */
+        boolean putByName(final String name, final Object value) {
+            final Key key = KEYS_BY_NAME.get(name);
+            if (key != null) {
+                if (value instanceof Boolean) {
+                    putBoolean(key, (Boolean) value);
+                } else if (value instanceof Integer) {
+                    putInt(key, (Integer) value);
+                } else {
+                    return false;
+                }
+                return true;
+            }
+            final int index = indexSuffixStart(name);
+            if (index <= 0 || index == name.length()) {
+                return false;
+            }
+            final Key indexedKey = KEYS_BY_NAME.get(name.substring(0, index));
+            if (indexedKey == null) {
+                return false;
+            }
+            final int arg = Integer.parseInt(name.substring(index));
+            if (value instanceof Integer) {
+                putInt(indexedKey, arg, (Integer) value);
+            } else if (value instanceof String && indexedKey == Key.eq_preset_name) {
+                putString(indexedKey, arg, (String) value);
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        int getInt(final Key key, final int defValue) {
+            return (mPresent & (1L << key.ordinal())) != 0 ? mValues[key.ordinal()] : defValue;
+        }
+
+        int getInt(final Key key, final int index, final int defValue) {
+            final int[] values = mIndexed[key.ordinal()];
+            if (values == null || index < 0 || index >= values.length) {
+                return defValue;
+            }
+            return values[index];
+        }
+
+        boolean isDirty(final Key key) {
+            return (mDirty & (1L << key.ordinal())) != 0;
+        }
+
+        boolean isDirty(final Key key, final int index) {
+            final BitSet dirty = mDirtyIndexed[key.ordinal()];
+            return dirty != null && dirty.get(index);
+        }
+
+        boolean isPresetNameDirty(final int index) {
+            return mDirtyPresetNames.get(index);
+        }
+
+        /**
+         * Marks all values as modified, so a copy of a snapshot is written completely to the
+         * record of another scope.
+         */
+        void markAllDirty() {
+            mDirty = mPresent;
+            for (int ordinal = 0; ordinal < mIndexed.length; ordinal++) {
+                if (mIndexed[ordinal] != null) {
+                    mDirtyIndexed[ordinal] = new BitSet();
+                    mDirtyIndexed[ordinal].set(0, mIndexed[ordinal].length);
+                }
+            }
+            for (int i = 0; i < mPresetNames.length; i++) {
+                if (mPresetNames[i] != null) {
+                    mDirtyPresetNames.set(i);
+                }
+            }
+        }
+
+        void clearDirty() {
+            mDirty = 0L;
+            Arrays.fill(mDirtyIndexed, null);
+            mDirtyPresetNames.clear();
+        }
+
+        /**
+         * Writes all values modified through this builder to the given editor.
+         */
+        void writeTo(final ProfileStore.Editor editor) {
+            for (Key key : KEYS) {
+                final int ordinal = key.ordinal();
+                if ((mDirty & (1L << ordinal)) != 0) {
+                    editor.putInt(key, mValues[ordinal]);
+                }
+                final BitSet dirty = mDirtyIndexed[ordinal];
+                if (dirty != null) {
+                    for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+                        editor.putInt(key, i, mIndexed[ordinal][i]);
+                    }
+                }
+            }
+            for (int i = mDirtyPresetNames.nextSetBit(0); i >= 0;
+                    i = mDirtyPresetNames.nextSetBit(i + 1)) {
+                editor.putString(Key.eq_preset_name, i, mPresetNames[i]);
+            }
+        }
+
+        EffectConfig build() {
+            // Arrays handed to the snapshot must not be modified by this builder anymore
+            Arrays.fill(mIndexedCopied, false);
+            mPresetNamesCopied = false;
+            final EffectConfig config = new EffectConfig(mPresent, mValues, mIndexed.clone(),
+                    mPresetNames);
+            mValues = mValues.clone();
+            return config;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+/**
+ * One effect instance created by an EffectBackend on an audio session.
+ *
+ * Every method except release() is a call into the effect and may throw the
+ * RuntimeException of the underlying effect, e.g. IllegalStateException once the effect lost
+ * control or UnsupportedOperationException if the effect cannot be configured. Methods of
+ * other effect types throw UnsupportedOperationException.
+ */
+interface EffectHandle {
+
+    EffectBackend.Type getType();
+
+    int getAudioSession();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Sets the strength of a virtualizer, bass boost or stereo wide effect.
+     */
+    void setStrength(short strength);
+
+    /**
+     * Selects the preset of a preset reverb.
+     */
+    void setPreset(short preset);
+
+    /**
+     * Sets the level of one equalizer band.
+     */
+    void setBandLevel(short band, short level);
+
+    /**
+     * Sets the levels of all equalizer bands in one call.
+     *
+     * @throws IllegalArgumentException
+     *             if the effect does not accept the levels in one call, e.g. for a different
+     *             number of bands. The levels are then set band by band. Any other exception
+     *             fails the update like the other calls.
+     */
+    void setBandLevels(short[] levels);
+
+    // Equalizer properties, only read while probing the capabilities
+
+    short[] getBandLevelRange();
+
+    short getNumberOfBands();
+
+    int getCenterFreq(short band);
+
+    short getNumberOfPresets();
+
+    String getPresetName(short preset);
+
+    void usePreset(short preset);
+
+    short getBandLevel(short band);
+
+    // Virtualizer properties, only read while probing the capabilities
+
+    boolean getStrengthSupported();
+
+    /**
+     * Returns true if the virtualizer supports transaural virtualization of stereo content.
+     */
+    boolean canVirtualizeTransaural();
+
+    /**
+     * Releases the effect. Must be called exactly once, no method may be called afterwards.
+     */
+    void release();
+}
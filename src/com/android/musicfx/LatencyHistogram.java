@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe latency histogram with power of two buckets in microseconds. Bucket 0 counts
+ * values below 1 us, bucket n values from 2^(n-1) up to 2^n us. Recording does not allocate.
+ */
+final class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    LatencyHistogram(final String name) {
+        mName = name;
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos
+     *            the latency in ns as measured with System.nanoTime()
+     */
+    void record(final long nanos) {
+        final long micros = nanos < 0 ? 0 : nanos / 1000;
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Returns the upper bound in us of the bucket containing the given percentile, 0 if
+     * nothing was recorded.
+     *
+     * @param percentile
+     *            between 0 and 100
+     */
+    long getPercentileMicros(final double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mBuckets.get(bucket);
+            if (seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    void dump(final PrintWriter pw, final String prefix) {
+        final long count = mCount.get();
+        pw.print(prefix);
+        pw.print(mName);
+        pw.print(": count=");
+        pw.print(count);
+        if (count > 0) {
+            pw.print(" avg=");
+            pw.print(mTotalNanos.get() / count / 1000);
+            pw.print("us p50<=");
+            pw.print(getPercentileMicros(50));
+            pw.print("us p90<=");
+            pw.print(getPercentileMicros(90));
+            pw.print("us p99<=");
+            pw.print(getPercentileMicros(99));
+            pw.print("us max=");
+            pw.print(mMaxNanos.get() / 1000);
+            pw.print("us");
+        }
+        pw.println();
+    }
+}
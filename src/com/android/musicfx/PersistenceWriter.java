@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Write-behind stage in front of the ProfileStore.
+ *
+ * Parameter changes are queued per scope and repeated writes of the same key, or of the same
+ * band or preset of a key, are merged while pending, the last value wins. A single background
+ * thread writes the queued changes in groups, so each touched scope is written and synced once
+ * per group.
+ */
+final class PersistenceWriter {
+
+    private final static String TAG = "MusicFXPersistenceWriter";
+
+    /**
+     * Time in ms changes are collected before a group is written.
+     */
+    private final static long GROUP_COMMIT_DELAY = 100;
+
+    private final ProfileStore mStore;
+    private final Handler mHandler;
+    private Map<String, EffectConfig.Builder> mPending =
+            new HashMap<String, EffectConfig.Builder>();
+    /** The group being written by the writer thread, null between groups. */
+    private Map<String, EffectConfig.Builder> mWriting;
+    private boolean mScheduled;
+    private long mWrites;
+    private long mMerged;
+    private long mGroups;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    PersistenceWriter(final ProfileStore store) {
+        mStore = store;
+        final HandlerThread thread = new HandlerThread("MusicFXPersistence",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queues the values modified through the given builder for the scope.
+     */
+    void enqueue(final String scope, final EffectConfig.Builder builder) {
+        synchronized (this) {
+            EffectConfig.Builder pending = mPending.get(scope);
+            if (pending == null) {
+                pending = new EffectConfig.Builder(EffectConfig.EMPTY);
+                mPending.put(scope, pending);
+            }
+            final EffectConfig.Builder target = pending;
+            builder.writeTo(new ProfileStore.Editor() {
+                @Override
+                public void putInt(final Key key, final int value) {
+                    count(target.isDirty(key));
+                    target.putInt(key, value);
+                }
+
+                @Override
+                public void putInt(final Key key, final int index, final int value) {
+                    count(target.isDirty(key, index));
+                    target.putInt(key, index, value);
+                }
+
+                @Override
+                public void putString(final Key key, final int index, final String value) {
+                    count(target.isPresetNameDirty(index));
+                    target.putString(key, index, value);
+                }
+            });
+            if (!mScheduled) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, GROUP_COMMIT_DELAY);
+            }
+        }
+    }
+
+    // Called with the writer locked
+    private void count(final boolean merged) {
+        mWrites++;
+        if (merged) {
+            mMerged++;
+        }
+    }
+
+    /**
+     * Blocks until all changes queued before the call are written and synced.
+     */
+    void flush() {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            writePending();
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "flush interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Only runs on the writer thread
+    private void writePending() {
+        final Map<String, EffectConfig.Builder> group;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            group = mPending;
+            mPending = new HashMap<String, EffectConfig.Builder>();
+            mWriting = group;
+            mGroups++;
+        }
+        for (Map.Entry<String, EffectConfig.Builder> entry : group.entrySet()) {
+            mStore.write(entry.getKey(), entry.getValue());
+        }
+        synchronized (this) {
+            mWriting = null;
+        }
+    }
+
+    /**
+     * Returns true if changes of the scope are queued or being written, i.e. have not reached
+     * the store yet.
+     */
+    synchronized boolean isPending(final String scope) {
+        return mPending.containsKey(scope) || (mWriting != null && mWriting.containsKey(scope));
+    }
+
+    /**
+     * Returns the number of field writes queued so far.
+     */
+    synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    /**
+     * Returns the number of queued field writes that were merged into a pending write of the
+     * same field and never reached the store on their own.
+     */
+    synchronized long getMergedCount() {
+        return mMerged;
+    }
+
+    /**
+     * Returns the number of groups written to the store.
+     */
+    synchronized long getGroupCount() {
+        return mGroups;
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Xml;
+
+import com.android.musicfx.ControlPanelEffect.Key;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store of the effect parameters of all preference scopes.
+ *
+ * Each scope is kept in its own memory mapped file holding two copies of a fixed layout
+ * record. Every Key has a fixed offset in the record and per band values are packed into
+ * fixed size arrays, so nothing is parsed or serialized. Each copy carries a sequence number
+ * and a CRC32 of its payload. A change copies the current record over the older copy, writes
+ * the modified fields into it, updates its sequence number and checksum and flushes it to
+ * storage before it becomes the current one. A write torn by a crash therefore invalidates at
+ * most the copy being written and loading falls back to the other one.
+ *
+ * Scopes which have no store file yet are migrated once from their SharedPreferences XML
+ * file, which is deleted afterwards. A store file without a valid copy is migrated again if
+ * the XML file is still there and reset to the defaults otherwise.
+ */
+final class ProfileStore {
+
+    private final static String TAG = "MusicFXProfileStore";
+
+    private static final String DIRECTORY = "profiles";
+    private static final String SUFFIX = ".bin";
+
+    private static final int MAGIC = 0x5058464d; // "MFXP"
+    private static final int VERSION = 1;
+
+    static final int MAX_KEYS = 64;
+    static final int MAX_BANDS = 32;
+    static final int MAX_PRESETS = 32;
+    private static final int PRESET_NAME_SIZE = 32;
+
+    /** Keys holding one value per band, in the order of their slots in the record. */
+    private static final Key[] BAND_KEYS = new Key[] {
+        Key.eq_level_range, Key.eq_center_freq, Key.eq_band_level,
+        Key.eq_preset_user_band_level, Key.eq_preset_user_band_level_default
+    };
+
+    // Record layout, the checksum covers everything from OFFSET_PAYLOAD to RECORD_SIZE
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SEQUENCE = 8;
+    private static final int OFFSET_CHECKSUM = 16;
+    private static final int OFFSET_PAYLOAD = 20;
+    private static final int OFFSET_PRESENT = OFFSET_PAYLOAD;
+    private static final int OFFSET_SCALARS = OFFSET_PRESENT + 8;
+    private static final int OFFSET_BANDS = OFFSET_SCALARS + MAX_KEYS * 4;
+    private static final int BAND_SLOT_SIZE = 4 + MAX_BANDS * 4;
+    private static final int OFFSET_PRESET_NAME_COUNT = OFFSET_BANDS
+            + BAND_KEYS.length * BAND_SLOT_SIZE;
+    private static final int OFFSET_PRESET_NAMES = OFFSET_PRESET_NAME_COUNT + 4;
+    private static final int RECORD_END = OFFSET_PRESET_NAMES + MAX_PRESETS * PRESET_NAME_SIZE;
+    static final int RECORD_SIZE = 2048;
+    private static final int FILE_SIZE = 2 * RECORD_SIZE;
+
+    static {
+        if (RECORD_END > RECORD_SIZE || Key.values().length > MAX_KEYS) {
+            throw new AssertionError("Profile record layout overflow");
+        }
+    }
+
+    /**
+     * Receives the values to be written to a record.
+     */
+    interface Editor {
+        void putInt(Key key, int value);
+        void putInt(Key key, int index, int value);
+        void putString(Key key, int index, String value);
+    }
+
+    private static ProfileStore sInstance;
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final Map<String, Profile> mProfiles = new HashMap<String, Profile>();
+
+    static synchronized ProfileStore getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new ProfileStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ProfileStore(final Context context) {
+        mContext = context;
+        mDirectory = new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Loads the parameters of the given scope.
+     *
+     * @param scope
+     * @return the snapshot of the stored parameters
+     */
+    synchronized EffectConfig load(final String scope) {
+        ControlPanelEffect.checkNotMainThread("ProfileStore.load");
+        final EffectConfig.Builder builder = new EffectConfig.Builder(EffectConfig.EMPTY);
+        try {
+            getProfile(scope).readInto(builder);
+        } catch (final IOException e) {
+            Log.e(TAG, "load: " + scope + "; " + e);
+        }
+        builder.clearDirty();
+        return builder.build();
+    }
+
+    /**
+     * Writes the values modified through the given builder to the scope's record.
+     *
+     * The change is flushed to storage before returning.
+     *
+     * @param scope
+     * @param builder
+     */
+    synchronized void write(final String scope, final EffectConfig.Builder builder) {
+        ControlPanelEffect.checkNotMainThread("ProfileStore.write");
+        try {
+            getProfile(scope).write(builder);
+        } catch (final IOException e) {
+            Log.e(TAG, "write: " + scope + "; " + e);
+        }
+    }
+
+    /**
+     * Flushes the scope's record and drops its mapping, the record is mapped again on the next
+     * access.
+     */
+    synchronized void close(final String scope) {
+        final Profile profile = mProfiles.remove(scope);
+        if (profile != null) {
+            profile.mBuffer.force();
+        }
+    }
+
+    private Profile getProfile(final String scope) throws IOException {
+        Profile profile = mProfiles.get(scope);
+        if (profile == null) {
+            profile = open(scope);
+            mProfiles.put(scope, profile);
+        }
+        return profile;
+    }
+
+    private Profile open(final String scope) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        final File file = new File(mDirectory, scope + SUFFIX);
+        final long length = file.length();
+        final MappedByteBuffer buffer;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(FILE_SIZE);
+            // the mapping stays valid after the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        final Profile profile = new Profile(buffer);
+        if (length == 0) {
+            migrate(scope, profile);
+        } else if (!profile.validate()) {
+            // e.g. a crash while the file was created, before the XML file was deleted
+            Log.w(TAG, "No valid record in " + file + " of " + length
+                    + " bytes, migrating again or falling back to defaults");
+            migrate(scope, profile);
+        } else if (length != FILE_SIZE) {
+            Log.w(TAG, "Unexpected size " + length + " of " + file + ", using its valid record");
+        }
+        return profile;
+    }
+
+    /**
+     * Streams the scope's SharedPreferences XML file, if any, into a fresh record.
+     */
+    private void migrate(final String scope, final Profile profile) throws IOException {
+        final File xml = new File(new File(mContext.getDataDir(), "shared_prefs"),
+                scope + ".xml");
+        final EffectConfig.Builder builder = new EffectConfig.Builder(EffectConfig.EMPTY);
+        boolean migrated = false;
+        if (xml.exists()) {
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(new FileInputStream(xml));
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(in, StandardCharsets.UTF_8.name());
+                for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT;
+                        event = parser.next()) {
+                    if (event != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    final String tag = parser.getName();
+                    final String name = parser.getAttributeValue(null, "name");
+                    if (name == null) {
+                        continue;
+                    }
+                    if ("int".equals(tag)) {
+                        builder.putByName(name,
+                                Integer.valueOf(parser.getAttributeValue(null, "value")));
+                    } else if ("boolean".equals(tag)) {
+                        builder.putByName(name,
+                                Boolean.valueOf(parser.getAttributeValue(null, "value")));
+                    } else if ("string".equals(tag)) {
+                        builder.putByName(name, parser.nextText());
+                    }
+                }
+                migrated = true;
+            } catch (final XmlPullParserException e) {
+                Log.e(TAG, "migrate: " + xml + "; " + e);
+            } catch (final NumberFormatException e) {
+                Log.e(TAG, "migrate: " + xml + "; " + e);
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+        profile.reset(builder);
+        if (migrated) {
+            Log.i(TAG, "Migrated " + xml);
+            mContext.deleteSharedPreferences(scope);
+        }
+    }
+
+    /**
+     * The two record copies of one scope.
+     */
+    private static final class Profile {
+        final MappedByteBuffer mBuffer;
+        private final byte[] mScratch = new byte[RECORD_SIZE - OFFSET_PAYLOAD];
+        private final CRC32 mCrc = new CRC32();
+        private long mSequence;
+        /** Offset of the current copy. */
+        private int mCurrent;
+
+        private final RecordEditor mEditor = new RecordEditor();
+
+        Profile(final MappedByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * Picks the valid copy with the highest sequence number and repairs the other one.
+         *
+         * @return false if no copy is valid
+         */
+        boolean validate() {
+            final boolean firstValid = isValid(0);
+            final boolean secondValid = isValid(RECORD_SIZE);
+            if (!firstValid && !secondValid) {
+                return false;
+            }
+            final long firstSequence = mBuffer.getLong(OFFSET_SEQUENCE);
+            final long secondSequence = mBuffer.getLong(RECORD_SIZE + OFFSET_SEQUENCE);
+            if (firstValid && (!secondValid || firstSequence >= secondSequence)) {
+                mCurrent = 0;
+                mSequence = firstSequence;
+            } else {
+                mCurrent = RECORD_SIZE;
+                mSequence = secondSequence;
+            }
+            return true;
+        }
+
+        private boolean isValid(final int base) {
+            return mBuffer.getInt(base + OFFSET_MAGIC) == MAGIC
+                    && mBuffer.getInt(base + OFFSET_VERSION) == VERSION
+                    && mBuffer.getInt(base + OFFSET_CHECKSUM) == checksum(base);
+        }
+
+        private int checksum(final int base) {
+            for (int i = 0; i < mScratch.length; i++) {
+                mScratch[i] = mBuffer.get(base + OFFSET_PAYLOAD + i);
+            }
+            mCrc.reset();
+            mCrc.update(mScratch, 0, mScratch.length);
+            return (int) mCrc.getValue();
+        }
+
+        /**
+         * Replaces both copies with empty records and writes the values of the given builder.
+         */
+        void reset(final EffectConfig.Builder builder) {
+            for (int base = 0; base < FILE_SIZE; base += RECORD_SIZE) {
+                for (int i = 0; i < RECORD_SIZE; i++) {
+                    mBuffer.put(base + i, (byte) 0);
+                }
+                mBuffer.putInt(base + OFFSET_MAGIC, MAGIC);
+                mBuffer.putInt(base + OFFSET_VERSION, VERSION);
+                mBuffer.putInt(base + OFFSET_CHECKSUM, checksum(base));
+            }
+            mSequence = 0;
+            mCurrent = 0;
+            write(builder);
+        }
+
+        /**
+         * Applies the values of the given builder on top of the current copy to the older copy
+         * and flushes it. The current copy is not touched, so it stays valid until the new one
+         * has reached storage.
+         */
+        void write(final EffectConfig.Builder builder) {
+            final int target = RECORD_SIZE - mCurrent;
+            for (int i = 0; i < RECORD_SIZE; i++) {
+                mBuffer.put(target + i, mBuffer.get(mCurrent + i));
+            }
+            mEditor.mBase = target;
+            builder.writeTo(mEditor);
+            mBuffer.putLong(target + OFFSET_SEQUENCE, mSequence + 1);
+            mBuffer.putInt(target + OFFSET_CHECKSUM, checksum(target));
+            mBuffer.force();
+            mSequence++;
+            mCurrent = target;
+        }
+
+        void readInto(final EffectConfig.Builder builder) {
+            final long present = mBuffer.getLong(mCurrent + OFFSET_PRESENT);
+            for (Key key : Key.values()) {
+                if ((present & (1L << key.ordinal())) != 0) {
+                    builder.putInt(key,
+                            mBuffer.getInt(mCurrent + OFFSET_SCALARS + key.ordinal() * 4));
+                }
+            }
+            for (int slot = 0; slot < BAND_KEYS.length; slot++) {
+                final int offset = mCurrent + OFFSET_BANDS + slot * BAND_SLOT_SIZE;
+                final int count = Math.min(mBuffer.getInt(offset), MAX_BANDS);
+                for (int i = 0; i < count; i++) {
+                    builder.putInt(BAND_KEYS[slot], i, mBuffer.getInt(offset + 4 + i * 4));
+                }
+            }
+            final int count = Math.min(mBuffer.getInt(mCurrent + OFFSET_PRESET_NAME_COUNT),
+                    MAX_PRESETS);
+            for (int i = 0; i < count; i++) {
+                final int offset = mCurrent + OFFSET_PRESET_NAMES + i * PRESET_NAME_SIZE;
+                final int length = mBuffer.get(offset) & 0xff;
+                final byte[] bytes = new byte[length];
+                for (int j = 0; j < length; j++) {
+                    bytes[j] = mBuffer.get(offset + 1 + j);
+                }
+                builder.putString(Key.eq_preset_name, i,
+                        new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        private final class RecordEditor implements Editor {
+            int mBase;
+
+            @Override
+            public void putInt(final Key key, final int value) {
+                final int offset = mBase + OFFSET_PRESENT;
+                mBuffer.putLong(offset, mBuffer.getLong(offset) | (1L << key.ordinal()));
+                mBuffer.putInt(mBase + OFFSET_SCALARS + key.ordinal() * 4, value);
+            }
+
+            @Override
+            public void putInt(final Key key, final int index, final int value) {
+                final int slot = bandSlot(key);
+                if (slot < 0 || index < 0 || index >= MAX_BANDS) {
+                    Log.w(TAG, "Dropping " + key + index);
+                    return;
+                }
+                final int offset = mBase + OFFSET_BANDS + slot * BAND_SLOT_SIZE;
+                if (mBuffer.getInt(offset) <= index) {
+                    mBuffer.putInt(offset, index + 1);
+                }
+                mBuffer.putInt(offset + 4 + index * 4, value);
+            }
+
+            @Override
+            public void putString(final Key key, final int index, final String value) {
+                if (key != Key.eq_preset_name || index < 0 || index >= MAX_PRESETS) {
+                    Log.w(TAG, "Dropping " + key + index);
+                    return;
+                }
+                if (mBuffer.getInt(mBase + OFFSET_PRESET_NAME_COUNT) <= index) {
+                    mBuffer.putInt(mBase + OFFSET_PRESET_NAME_COUNT, index + 1);
+                }
+                final byte[] bytes = encodeName(value);
+                final int offset = mBase + OFFSET_PRESET_NAMES + index * PRESET_NAME_SIZE;
+                mBuffer.put(offset, (byte) bytes.length);
+                for (int i = 0; i < bytes.length; i++) {
+                    mBuffer.put(offset + 1 + i, bytes[i]);
+                }
+            }
+        }
+    }
+
+    private static int bandSlot(final Key key) {
+        for (int slot = 0; slot < BAND_KEYS.length; slot++) {
+            if (BAND_KEYS[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes a preset name to UTF-8, shortened to whole characters fitting into a slot.
+     */
+    private static byte[] encodeName(final String name) {
+        String value = name == null ? "" : name;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        while (bytes.length > PRESET_NAME_SIZE - 1) {
+            value = value.substring(0, value.length() - 1);
+            bytes = value.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.os.Handler;
+
+import com.android.musicfx.RouteTable.Route;
+
+/**
+ * Merges bursts of route transitions into one settled transition. Flaky Bluetooth links and
+ * bouncing headset plugs otherwise commit the route, broadcast the scope change and update the
+ * DSP for every connect and disconnect.
+ *
+ * After a transition of the RouteStateMachine the new scope has to stay for a settle delay
+ * before it is committed, every further transition restarts the delay. A burst ending on the
+ * committed scope commits nothing. Only the committed scope is published through getScope(),
+ * so parameter changes and new sessions during a burst keep using it. The delay has
+ * hysteresis: moving to a route of higher priority, i.e. a device showing up, waits the
+ * connect delay, falling back waits the usually shorter disconnect delay, as the audio is
+ * already played on the lower priority output.
+ *
+ * Only used on the control thread.
+ */
+final class RouteDebouncer {
+
+    /** Default settle delay in ms before a transition to a higher priority route commits. */
+    static final long CONNECT_DELAY_DEFAULT = 500;
+    /** Default settle delay in ms before a transition to a lower priority route commits. */
+    static final long DISCONNECT_DELAY_DEFAULT = 150;
+
+    private final Handler mHandler;
+    private final RouteStateMachine mRouteStateMachine;
+    private final Runnable mCommit;
+    private final long mConnectDelay;
+    private final long mDisconnectDelay;
+
+    private volatile String mCommittedScope;
+    /** Transitions since the last commit, 0 if the committed scope is current. */
+    private int mPendingTransitions;
+    private long mTransitions;
+    private long mCommits;
+    private long mSuppressed;
+
+    private final Runnable mSettleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            settle();
+        }
+    };
+
+    /**
+     * @param handler
+     *            handler of the control thread
+     * @param routeStateMachine
+     *            the route model, its scope at construction counts as committed
+     * @param commit
+     *            run on the control thread with each settled transition
+     * @param connectDelayMs
+     *            settle delay towards higher priority routes, 0 commits at once
+     * @param disconnectDelayMs
+     *            settle delay towards lower priority routes, 0 commits at once
+     */
+    RouteDebouncer(final Handler handler, final RouteStateMachine routeStateMachine,
+            final Runnable commit, final long connectDelayMs, final long disconnectDelayMs) {
+        if (connectDelayMs < 0 || disconnectDelayMs < 0) {
+            throw new IllegalArgumentException("Negative settle delay");
+        }
+        mHandler = handler;
+        mRouteStateMachine = routeStateMachine;
+        mCommit = commit;
+        mConnectDelay = connectDelayMs;
+        mDisconnectDelay = disconnectDelayMs;
+        mCommittedScope = routeStateMachine.getScope();
+    }
+
+    /**
+     * Returns the committed scope, may be called from any thread.
+     */
+    String getScope() {
+        return mCommittedScope;
+    }
+
+    RouteStateMachine getRouteStateMachine() {
+        return mRouteStateMachine;
+    }
+
+    /**
+     * Reports a transition of the route model, i.e. a change of its scope.
+     */
+    void onTransition() {
+        mTransitions++;
+        mPendingTransitions++;
+        mHandler.removeCallbacks(mSettleRunnable);
+        final String scope = mRouteStateMachine.getScope();
+        if (scope.equals(mCommittedScope)) {
+            // flapped back before settling
+            mSuppressed += mPendingTransitions;
+            mPendingTransitions = 0;
+            return;
+        }
+        final long delay = isConnect(scope) ? mConnectDelay : mDisconnectDelay;
+        if (delay == 0) {
+            settle();
+        } else {
+            mHandler.postDelayed(mSettleRunnable, delay);
+        }
+    }
+
+    private boolean isConnect(final String scope) {
+        final Route route = RouteTable.forScope(scope);
+        final Route committed = RouteTable.forScope(mCommittedScope);
+        // another device on the same route connects too
+        return RouteTable.getPriority(route) <= RouteTable.getPriority(committed);
+    }
+
+    private void settle() {
+        if (mPendingTransitions == 0) {
+            return;
+        }
+        mSuppressed += mPendingTransitions - 1;
+        mPendingTransitions = 0;
+        mCommittedScope = mRouteStateMachine.getScope();
+        mCommits++;
+        mCommit.run();
+    }
+
+    /**
+     * Drops a pending transition without committing it.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mSettleRunnable);
+        mPendingTransitions = 0;
+    }
+
+    long getTransitionCount() {
+        return mTransitions;
+    }
+
+    long getCommitCount() {
+        return mCommits;
+    }
+
+    /**
+     * Returns the number of transitions merged into a later one or undone before settling.
+     */
+    long getSuppressedCount() {
+        return mSuppressed;
+    }
+
+    @Override
+    public String toString() {
+        return "committed=" + mCommittedScope + " pending=" + mPendingTransitions
+                + " transitions=" + mTransitions + " commits=" + mCommits + " suppressed="
+                + mSuppressed + " connectDelay=" + mConnectDelay + "ms disconnectDelay="
+                + mDisconnectDelay + "ms";
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.musicfx;
+
+import com.android.musicfx.RouteTable.Route;
+
+/**
+ * In-memory model of the active output route, owned by the SystemService and fed with the
+ * added and removed output devices on the control thread. The connected devices are counted
+ * per route, the active route is the one of highest priority in RouteTable with a connected
+ * device, the speaker if there is none. While a known Bluetooth device is connected the
+ * Bluetooth route uses the device's own scope instead of the shared one.
+ *
+ * The current route is published through a volatile field, so ControlPanelEffect and the UI
+ * read it without locking.
+ */
+final class RouteStateMachine {
+
+    // Connected output devices per route id, only changed on the control thread
+    private final int[] mConnected = new int[RouteTable.ROUTES.length];
+
+    private volatile Route mRoute;
+    /** Scope of the current Bluetooth device, null to use the shared Bluetooth scope. */
+    private volatile String mBluetoothScope;
+    private long mTransitions;
+
+    /**
+     * Starts from the last persisted route, which is kept until the first update.
+     *
+     * @param route
+     */
+    RouteStateMachine(final Route route) {
+        mRoute = route;
+    }
+
+    /**
+     * Returns the current route, may be called from any thread.
+     */
+    Route getRoute() {
+        return mRoute;
+    }
+
+    /**
+     * Returns the scope of the current route, may be called from any thread.
+     */
+    String getScope() {
+        final Route route = mRoute;
+        if (route == RouteTable.BLUETOOTH) {
+            final String bluetoothScope = mBluetoothScope;
+            if (bluetoothScope != null) {
+                return bluetoothScope;
+            }
+        }
+        return route.mScope;
+    }
+
+    String getBluetoothScope() {
+        return mBluetoothScope;
+    }
+
+    /**
+     * Sets the scope of the current Bluetooth device.
+     *
+     * @param scope
+     *            the device's scope, null to use the shared Bluetooth scope
+     * @return true if the scope of the current route changed
+     */
+    boolean setBluetoothScope(final String scope) {
+        final String previous = getScope();
+        mBluetoothScope = scope;
+        return !previous.equals(getScope());
+    }
+
+    boolean isConnected(final Route route) {
+        return route == RouteTable.SPEAKER || mConnected[route.mId] > 0;
+    }
+
+    /**
+     * Counts a connected output device, the route is only changed by update().
+     *
+     * @param type
+     *            one of the AudioDeviceInfo.TYPE_ constants
+     * @return false if the device type has no route
+     */
+    boolean deviceAdded(final int type) {
+        final Route route = RouteTable.forDeviceType(type);
+        if (route == null) {
+            return false;
+        }
+        mConnected[route.mId]++;
+        return true;
+    }
+
+    /**
+     * Counts a disconnected output device, the route is only changed by update().
+     *
+     * @param type
+     *            one of the AudioDeviceInfo.TYPE_ constants
+     * @return false if the device type has no route
+     */
+    boolean deviceRemoved(final int type) {
+        final Route route = RouteTable.forDeviceType(type);
+        if (route == null) {
+            return false;
+        }
+        if (mConnected[route.mId] > 0) {
+            mConnected[route.mId]--;
+        }
+        return true;
+    }
+
+    /**
+     * Selects the route from the connected devices.
+     *
+     * @return true if the route changed
+     */
+    boolean update() {
+        Route route = RouteTable.SPEAKER;
+        for (Route candidate : RouteTable.ROUTES) {
+            if (mConnected[candidate.mId] > 0) {
+                route = candidate;
+                break;
+            }
+        }
+        if (route == mRoute) {
+            return false;
+        }
+        mRoute = route;
+        mTransitions++;
+        return true;
+    }
+
+    long getTransitionCount() {
+        return mTransitions;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(mRoute).append(" (scope=").append(getScope()).append(" connected=[");
+        String separator = "";
+        for (Route route : RouteTable.ROUTES) {
+            if (mConnected[route.mId] > 0) {
+                sb.append(separator).append(route).append('=').append(mConnected[route.mId]);
+                separator = " ";
+            }
+        }
+        sb.append("] transitions=").append(mTransitions).append(')');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2010-2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.musicfx;
+
+import android.media.AudioDeviceInfo;
+
+import com.android.musicfx.EffectBackend.Type;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+/**
+ * Table of the output routes. Every route has its own preference scope and a precomputed mask
+ * of the effects applied on it, output devices are mapped to their route by device type with
+ * one array lookup. Adding a route takes a scope and one entry in ROUTES.
+ */
+final class RouteTable {
+
+    // Output device types of later platform versions, routed as soon as they show up
+    static final int TYPE_HEARING_AID = 23;
+    static final int TYPE_BLE_HEADSET = 26;
+    static final int TYPE_BLE_SPEAKER = 27;
+    static final int TYPE_HDMI_EARC = 29;
+
+    /** Device types are small consecutive ints, types beyond the table have no route. */
+    private static final int NUM_DEVICE_TYPES = 32;
+
+    /** Mask of all effects. */
+    static final int ALL_EFFECTS = (1 << Type.values().length) - 1;
+
+    /**
+     * Output route. The id is persisted and indexes the per-route state of the
+     * RouteStateMachine, so ids are dense and never reused.
+     */
+    static final class Route {
+        final int mId;
+        final String mName;
+        /** The preference scope holding the effect parameters of the route. */
+        final String mScope;
+        /** Headphone-class outputs get the virtualizer without transaural support. */
+        final boolean mHeadphones;
+        final int[] mDeviceTypes;
+        /** Effects applied on the route, precomputed from the capabilities. */
+        volatile int mEffectMask;
+
+        Route(final int id, final String name, final String scope, final boolean headphones,
+                final int... deviceTypes) {
+            mId = id;
+            mName = name;
+            mScope = scope;
+            mHeadphones = headphones;
+            mDeviceTypes = deviceTypes;
+            mEffectMask = effectMask(headphones, ALL_EFFECTS, false);
+        }
+
+        boolean isEffectAllowed(final Type type) {
+            return (mEffectMask & mask(type)) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    static final Route SPEAKER = new Route(0, "speaker", ControlPanelEffect.SPEAKER_PREF_SCOPE,
+            false, AudioDeviceInfo.TYPE_BUILTIN_SPEAKER);
+    static final Route HEADSET = new Route(1, "headset", ControlPanelEffect.HEADSET_PREF_SCOPE,
+            true, AudioDeviceInfo.TYPE_WIRED_HEADSET, AudioDeviceInfo.TYPE_WIRED_HEADPHONES,
+            AudioDeviceInfo.TYPE_USB_HEADSET);
+    static final Route BLUETOOTH = new Route(2, "bluetooth",
+            ControlPanelEffect.BLUETOOTH_PREF_SCOPE, true, AudioDeviceInfo.TYPE_BLUETOOTH_A2DP,
+            TYPE_HEARING_AID, TYPE_BLE_HEADSET, TYPE_BLE_SPEAKER);
+    static final Route USB = new Route(3, "usb", ControlPanelEffect.USB_PREF_SCOPE, false,
+            AudioDeviceInfo.TYPE_USB_DEVICE, AudioDeviceInfo.TYPE_USB_ACCESSORY);
+    static final Route HDMI = new Route(4, "hdmi", ControlPanelEffect.HDMI_PREF_SCOPE, false,
+            AudioDeviceInfo.TYPE_HDMI, AudioDeviceInfo.TYPE_HDMI_ARC, TYPE_HDMI_EARC);
+    static final Route DOCK = new Route(5, "dock", ControlPanelEffect.DOCK_PREF_SCOPE, false,
+            AudioDeviceInfo.TYPE_DOCK);
+    static final Route LINE = new Route(6, "line", ControlPanelEffect.LINE_PREF_SCOPE, false,
+            AudioDeviceInfo.TYPE_LINE_ANALOG, AudioDeviceInfo.TYPE_LINE_DIGITAL,
+            AudioDeviceInfo.TYPE_AUX_LINE);
+
+    /**
+     * All routes by descending priority, the first one with a connected device is active.
+     * Follows the output selection of the audio policy for media, the speaker always remains.
+     */
+    static final Route[] ROUTES = new Route[] {
+        BLUETOOTH, HEADSET, LINE, USB, DOCK, HDMI, SPEAKER
+    };
+
+    private static final Route[] mById = new Route[ROUTES.length];
+    private static final Route[] mByDeviceType = new Route[NUM_DEVICE_TYPES];
+    private static final HashMap<String, Route> mByScope = new HashMap<String, Route>();
+
+    static {
+        for (Route route : ROUTES) {
+            mById[route.mId] = route;
+            mByScope.put(route.mScope, route);
+            for (int type : route.mDeviceTypes) {
+                mByDeviceType[type] = route;
+            }
+        }
+    }
+
+    private RouteTable() {
+    }
+
+    /**
+     * Returns the position of the route in ROUTES, lower values take precedence.
+     */
+    static int getPriority(final Route route) {
+        for (int priority = 0; priority < ROUTES.length; priority++) {
+            if (ROUTES[priority] == route) {
+                return priority;
+            }
+        }
+        throw new IllegalArgumentException("Unknown route " + route);
+    }
+
+    static int mask(final Type type) {
+        return 1 << type.ordinal();
+    }
+
+    private static int effectMask(final boolean headphones, final int supported,
+            final boolean transaural) {
+        if (!headphones && !transaural) {
+            return supported & ~mask(Type.VIRTUALIZER);
+        }
+        return supported;
+    }
+
+    /**
+     * Precomputes the effect masks of all routes from the effects supported by the device.
+     *
+     * @param capabilities
+     */
+    static void setCapabilities(final EffectCapabilities capabilities) {
+        int supported = 0;
+        if (capabilities.mVirtualizerSupported) {
+            supported |= mask(Type.VIRTUALIZER);
+        }
+        if (capabilities.mBassBoostSupported) {
+            supported |= mask(Type.BASS_BOOST);
+        }
+        if (capabilities.mEqualizerSupported) {
+            supported |= mask(Type.EQUALIZER);
+        }
+        if (capabilities.mPresetReverbSupported) {
+            supported |= mask(Type.PRESET_REVERB);
+        }
+        if (capabilities.mStereoWideSupported) {
+            supported |= mask(Type.STEREO_WIDE);
+        }
+        for (Route route : ROUTES) {
+            route.mEffectMask = effectMask(route.mHeadphones, supported,
+                    capabilities.mVirtualizerTransauralSupported);
+        }
+    }
+
+    /**
+     * Returns the route of an output device type, null for types that are no media output
+     * such as the earpiece or telephony.
+     *
+     * @param type
+     *            one of the AudioDeviceInfo.TYPE_ constants
+     */
+    static Route forDeviceType(final int type) {
+        if (type < 0 || type >= NUM_DEVICE_TYPES) {
+            return null;
+        }
+        return mByDeviceType[type];
+    }
+
+    /**
+     * Returns the route with the given persisted id, null if there is none.
+     */
+    static Route forId(final int id) {
+        if (id < 0 || id >= mById.length) {
+            return null;
+        }
+        return mById[id];
+    }
+
+    /**
+     * Returns the route owning the given scope, the Bluetooth route for the scopes of
+     * individual Bluetooth devices, null if the scope belongs to no route.
+     */
+    static Route forScope(final String scope) {
+        final Route route = mByScope.get(scope);
+        if (route == null && scope.startsWith(ControlPanelEffect.BLUETOOTH_DEVICE_SCOPE_PREFIX)) {
+            return BLUETOOTH;
+        }
+        return route;
+    }
+
+    /**
+     * Returns the effects applied on the given scope, all effects for scopes without route.
+     */
+    static int getEffectMask(final String scope) {
+        final Route route = forScope(scope);
+        return route != null ? route.mEffectMask : ALL_EFFECTS;
+    }
+
+    /**
+     * Returns the scopes of all routes ordered by route id.
+     */
+    static String[] getScopes() {
+        final String[] scopes = new String[mById.length];
+        for (int id = 0; id < mById.length; id++) {
+            scopes[id] = mById[id].mScope;
+        }
+        return scopes;
+    }
+
+    static void dump(final PrintWriter pw, final String prefix) {
+        for (Route route : ROUTES) {
+            pw.println(prefix + route.mName + ": id=" + route.mId + " scope=" + route.mScope
+                    + " headphones=" + route.mHeadphones + " effects=0x"
+                    + Integer.toHexString(route.mEffectMask));
+        }
+    }
+}
@@ -13,19 +13,28 @@
  package com.android.musicfx;
 
 import android.app.Service;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothA2dp;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
 import android.media.AudioManager;
 import android.media.audiofx.AudioEffect;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemProperties;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+
 public class SystemService extends Service {
     private final static String TAG = "MusicFXSystemService";
 
@@ -36,6 +45,11 @@ public class SystemService extends Service {
     }
     private final LocalBinder mBinder = new LocalBinder();
 
+    /** Output route model, created and fed on the control thread. */
+    private RouteStateMachine mRouteStateMachine;
+    /** Commits the settled transitions of mRouteStateMachine, only used on the control thread. */
+    private RouteDebouncer mRouteDebouncer;
+
     private final BroadcastReceiver mAudioSessionReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -70,105 +84,246 @@ public class SystemService extends Service {
         }
     };
 
-    private final BroadcastReceiver mRoutingReceiver = new BroadcastReceiver() {
+    /**
+     * Feeds the added and removed output devices to the route model. On registration the
+     * callback is invoked with all connected devices, which replaces the persisted route.
+     */
+    private final AudioDeviceCallback mAudioDeviceCallback = new AudioDeviceCallback() {
         @Override
-        public void onReceive(final Context context, final Intent intent) {
-            final String action = intent.getAction();
-            Log.i(TAG, "onReceive " + action);
-            final boolean prevUseHeadset = ControlPanelEffect.getParameterBoolean(context,
-                    ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.headset);
-            boolean useHeadset = intent.getIntExtra("state", 0) == 1;
-            if (useHeadset != prevUseHeadset) {
-                Log.i(TAG, "useHeadset = " + useHeadset);
-                ControlPanelEffect.setParameterBoolean(context, ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.headset, useHeadset);
-                context.sendBroadcast(new Intent(ControlPanelEffect.PREF_SCOPE_CHANGED));
+        public void onAudioDevicesAdded(final AudioDeviceInfo[] addedDevices) {
+            for (AudioDeviceInfo device : addedDevices) {
+                if (device.isSink() && mRouteStateMachine.deviceAdded(device.getType())) {
+                    Log.i(TAG, "output added: type=" + device.getType() + " id="
+                            + device.getId());
+                }
             }
+            updateRoute();
+        }
+
+        @Override
+        public void onAudioDevicesRemoved(final AudioDeviceInfo[] removedDevices) {
+            for (AudioDeviceInfo device : removedDevices) {
+                if (device.isSink() && mRouteStateMachine.deviceRemoved(device.getType())) {
+                    Log.i(TAG, "output removed: type=" + device.getType() + " id="
+                            + device.getId());
+                }
+            }
+            updateRoute();
         }
     };
 
+    /**
+     * Tracks the connected A2DP device, whose own scope is used on the Bluetooth route. The
+     * scope is loaded here, before the device becomes the output.
+     */
     private final BroadcastReceiver mBtReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(final Context context, final Intent intent) {
-            final String action = intent.getAction();
-            Log.i(TAG, "onReceive " + action);
-            final boolean prevUseBluetooth = ControlPanelEffect.getParameterBoolean(context,
-                    ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.bluetooth);
-            boolean useBluetooth = prevUseBluetooth;
-            if (action.equals(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED)) {
-                int state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE,
-                    BluetoothProfile.STATE_CONNECTED);
-
-                if (state == BluetoothProfile.STATE_CONNECTED && !prevUseBluetooth) {
-                    useBluetooth = true;
-                } else if (prevUseBluetooth) {
-                    useBluetooth = false;
-                }
-            } else if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
-                String stateExtra = BluetoothAdapter.EXTRA_STATE;
-                int state = intent.getIntExtra(stateExtra, -1);
-
-                if (state == BluetoothAdapter.STATE_OFF && prevUseBluetooth) {
-                    useBluetooth = false;
-                }
+            final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) {
+                return;
             }
-            if (useBluetooth != prevUseBluetooth) {
-                Log.i(TAG, "useBluetooth = " + useBluetooth);
-                ControlPanelEffect.setParameterBoolean(context, ControlPanelEffect.GLOBAL_PREF_SCOPE,
-                        ControlPanelEffect.Key.bluetooth, useBluetooth);
-                context.sendBroadcast(new Intent(ControlPanelEffect.PREF_SCOPE_CHANGED));
+            final int state = intent.getIntExtra(BluetoothProfile.EXTRA_STATE,
+                    BluetoothProfile.STATE_DISCONNECTED);
+            Log.i(TAG, "onReceive " + intent.getAction() + " state=" + state);
+            final String scope = ControlPanelEffect.getBluetoothDeviceScope(device.getAddress());
+            if (state == BluetoothProfile.STATE_CONNECTED) {
+                setBluetoothScope(context, scope);
+            } else if (state == BluetoothProfile.STATE_DISCONNECTED
+                    && scope.equals(mRouteStateMachine.getBluetoothScope())) {
+                setBluetoothScope(context, null);
             }
         }
     };
 
+    /**
+     * Queries the A2DP device connected before the service started, the connection broadcast
+     * of which was missed.
+     */
+    private final BluetoothProfile.ServiceListener mA2dpListener =
+            new BluetoothProfile.ServiceListener() {
+        @Override
+        public void onServiceConnected(final int profile, final BluetoothProfile proxy) {
+            final List<BluetoothDevice> devices = proxy.getConnectedDevices();
+            BluetoothAdapter.getDefaultAdapter().closeProfileProxy(profile, proxy);
+            if (devices.isEmpty()) {
+                return;
+            }
+            final String scope = ControlPanelEffect.getBluetoothDeviceScope(
+                    devices.get(0).getAddress());
+            ControlPanelEffect.getControlHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    // a connection broadcast received meanwhile is more recent
+                    if (mRouteStateMachine.getBluetoothScope() == null) {
+                        setBluetoothScope(SystemService.this, scope);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(final int profile) {
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
         Log.i(TAG, "Starting service.");
 
+        // All effect work runs on the serial control thread, in the order the events arrived.
+        // The preferences are initialized first, probing the effect capabilities creates
+        // native effects on the first start after a system update.
+        final Handler handler = ControlPanelEffect.getControlHandler();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ControlPanelEffect.initEffectsPreferences(SystemService.this);
+                // tunables, set before the receivers below deliver the first session
+                ControlPanelEffect.setDspUpdateLatency(
+                        Math.max(0, SystemProperties.getLong(
+                                "persist.musicfx.dsp_min_interval",
+                                ControlPanelEffect.DSP_UPDATE_MIN_INTERVAL_DEFAULT)),
+                        Math.max(0, SystemProperties.getLong(
+                                "persist.musicfx.dsp_max_latency",
+                                ControlPanelEffect.DSP_UPDATE_MAX_LATENCY_DEFAULT)));
+                ControlPanelEffect.setDspUpdateParallelism(Math.min(
+                        ControlPanelEffect.DSP_UPDATE_PARALLELISM_MAX, Math.max(1,
+                                SystemProperties.getInt("persist.musicfx.dsp_parallelism",
+                                        ControlPanelEffect.getDspUpdateParallelism()))));
+                ControlPanelEffect.setSessionReleaseGracePeriod(Math.max(0,
+                        SystemProperties.getLong("persist.musicfx.session_grace_period",
+                                ControlPanelEffect.SESSION_RELEASE_GRACE_PERIOD_DEFAULT)));
+                mRouteStateMachine = new RouteStateMachine(
+                        ControlPanelEffect.getPersistedRoute(SystemService.this));
+                mRouteDebouncer = new RouteDebouncer(ControlPanelEffect.getControlHandler(),
+                        mRouteStateMachine, new Runnable() {
+                            @Override
+                            public void run() {
+                                onRouteChanged(SystemService.this);
+                            }
+                        },
+                        Math.max(0, SystemProperties.getLong(
+                                "persist.musicfx.route_connect_delay",
+                                RouteDebouncer.CONNECT_DELAY_DEFAULT)),
+                        Math.max(0, SystemProperties.getLong(
+                                "persist.musicfx.route_disconnect_delay",
+                                RouteDebouncer.DISCONNECT_DELAY_DEFAULT)));
+                ControlPanelEffect.setRouteDebouncer(mRouteDebouncer);
+
+                // persist.musicfx.global_session selects the session mode, without it the
+                // stored mode is restored
+                final boolean global = ControlPanelEffect.isGlobalSessionMode(
+                        SystemService.this);
+                final boolean selected = SystemProperties.getBoolean(
+                        "persist.musicfx.global_session", global);
+                if (selected != global) {
+                    ControlPanelEffect.setGlobalSessionMode(SystemService.this, selected);
+                } else {
+                    ControlPanelEffect.applySessionMode(SystemService.this);
+                }
+            }
+        });
+
         IntentFilter audioFilter = new IntentFilter();
         audioFilter.addAction(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
         audioFilter.addAction(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
-        registerReceiver(mAudioSessionReceiver, audioFilter);
-
-        final IntentFilter intentFilter = new IntentFilter(AudioManager.ACTION_HEADSET_PLUG);
-        registerReceiver(mRoutingReceiver, intentFilter);
-
-        final IntentFilter btFilter = new IntentFilter();
-        btFilter.addAction(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
-        btFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-        registerReceiver(mBtReceiver, btFilter);
-
-        // check if the last stored values reflect the current status
-        final boolean prevUseBluetooth = ControlPanelEffect.getParameterBoolean(this,
-                ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.bluetooth);
-        final boolean prevUseHeadset = ControlPanelEffect.getParameterBoolean(this,
-                ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.headset);
-
-        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        boolean useBluetooth = audioManager.isBluetoothA2dpOn();
-        boolean useHeadset = audioManager.isWiredHeadsetOn();
-        Log.i(TAG, "onCreate: useBluetooth = " + useBluetooth + " useHeadset = " + useHeadset);
-
-        if (useBluetooth != prevUseBluetooth) {
-            Log.i(TAG, "onCreate: useBluetooth = " + useBluetooth);
-            ControlPanelEffect.setParameterBoolean(this, ControlPanelEffect.GLOBAL_PREF_SCOPE,
-                    ControlPanelEffect.Key.bluetooth, useBluetooth);
-            sendBroadcast(new Intent(ControlPanelEffect.PREF_SCOPE_CHANGED));
+        registerReceiver(mAudioSessionReceiver, audioFilter, null, handler);
+
+        // the connected devices are reported on the control thread after the init above
+        final AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        audioManager.registerAudioDeviceCallback(mAudioDeviceCallback, handler);
+
+        final IntentFilter btFilter = new IntentFilter(
+                BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
+        registerReceiver(mBtReceiver, btFilter, null, handler);
+        final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter != null) {
+            adapter.getProfileProxy(this, mA2dpListener, BluetoothProfile.A2DP);
         }
-        if (useHeadset != prevUseHeadset) {
-            Log.i(TAG, "onCreate: useHeadset = " + useHeadset);
-            ControlPanelEffect.setParameterBoolean(this, ControlPanelEffect.GLOBAL_PREF_SCOPE, ControlPanelEffect.Key.headset, useHeadset);
-            sendBroadcast(new Intent(ControlPanelEffect.PREF_SCOPE_CHANGED));
+    }
+
+    /**
+     * Switches the Bluetooth route to the given device scope, loading it if it is not hot.
+     *
+     * @param context
+     * @param scope
+     *            the device's scope, null for the shared Bluetooth scope
+     */
+    private void setBluetoothScope(final Context context, final String scope) {
+        if (scope != null) {
+            ControlPanelEffect.loadBluetoothDeviceScope(context, scope);
+        }
+        if (mRouteStateMachine.setBluetoothScope(scope)) {
+            mRouteDebouncer.onTransition();
+        }
+    }
+
+    private void updateRoute() {
+        if (mRouteStateMachine.update()) {
+            mRouteDebouncer.onTransition();
         }
     }
 
+    /**
+     * Persists the id of the settled route, which also applies the route's scope to the open
+     * sessions, and notifies the UI. Nothing is written while the route stays, e.g. when only
+     * the Bluetooth device changed, the new scope is applied without a write then.
+     */
+    private void onRouteChanged(final Context context) {
+        Log.i(TAG, "route = " + mRouteStateMachine);
+        final int route = mRouteStateMachine.getRoute().mId;
+        if (ControlPanelEffect.getPersistedRoute(context).mId != route) {
+            ControlPanelEffect.edit(context, ControlPanelEffect.GLOBAL_PREF_SCOPE)
+                    .putInt(ControlPanelEffect.Key.output_route, route)
+                    .apply();
+        } else {
+            ControlPanelEffect.applyCurrentScope(context);
+        }
+        context.sendBroadcast(new Intent(ControlPanelEffect.PREF_SCOPE_CHANGED));
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "Stopping service.");
 
         unregisterReceiver(mAudioSessionReceiver);
-        unregisterReceiver(mRoutingReceiver);
+        ((AudioManager) getSystemService(Context.AUDIO_SERVICE))
+                .unregisterAudioDeviceCallback(mAudioDeviceCallback);
+        unregisterReceiver(mBtReceiver);
+        final Context appContext = getApplicationContext();
+        ControlPanelEffect.getControlHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRouteDebouncer != null) {
+                    mRouteDebouncer.cancel();
+                }
+            }
+        });
+        ControlPanelEffect.setRouteDebouncer(null);
+        ControlPanelEffect.releaseParkedSessions();
+        ControlPanelEffect.releaseGlobalSession();
+        // waits for the writer thread on the control thread, not on the main thread
+        ControlPanelEffect.getControlHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                ControlPanelEffect.flushPendingWrites(appContext);
+            }
+        });
+    }
+
+    /**
+     * Prints the session lifecycle counters and latencies.
+     */
+    public void dumpSessionStats(final PrintWriter pw) {
+        ControlPanelEffect.dumpSessionStats(pw, "");
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        ControlPanelEffect.dump(pw);
     }
 
     @Override
@@ -62,6 +62,7 @@ public class Knob extends FrameLayout {
     public interface OnKnobChangeListener {
         void onValueChanged(Knob knob, int value, boolean fromUser);
         boolean onSwitchChanged(Knob knob, boolean on);
+        void onStopTrackingTouch(Knob knob);
     }
 
     private OnKnobChangeListener mOnKnobChangeListener = null;
@@ -302,6 +303,14 @@ public class Knob extends FrameLayout {
                             invalidate();
                         }
                     }
+                } else if (mOnKnobChangeListener != null) {
+                    mOnKnobChangeListener.onStopTrackingTouch(this);
+                }
+                mMoved = false;
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                if (mMoved && mOnKnobChangeListener != null) {
+                    mOnKnobChangeListener.onStopTrackingTouch(this);
                 }
                 mMoved = false;
                 break;